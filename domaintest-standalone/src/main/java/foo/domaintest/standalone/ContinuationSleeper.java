@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static com.google.common.net.MediaType.PLAIN_TEXT_UTF_8;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+import foo.domaintest.util.Sleeper.DeferredSleeper;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link DeferredSleeper} that suspends the request with a Jetty {@link Continuation}.
+ * <p>
+ * The request thread goes back to the pool while the timer waits, so a sleeping request costs a
+ * scheduled task instead of a thread. The response is then written on the timer thread, with the
+ * same App Engine API environment as the request thread had, and if that fails before anything
+ * was sent the client gets a 500 instead of an empty response.
+ */
+class ContinuationSleeper implements DeferredSleeper {
+
+  private static final Logger logger = Logger.getLogger(ContinuationSleeper.class.getName());
+
+  private final ScheduledExecutorService timer;
+  private final Environment environment;
+  private final ServletRequest request;
+  private final HttpServletResponse response;
+
+  ContinuationSleeper(
+      ScheduledExecutorService timer,
+      Environment environment,
+      ServletRequest request,
+      HttpServletResponse response) {
+    this.timer = timer;
+    this.environment = environment;
+    this.request = request;
+    this.response = response;
+  }
+
+  @Override
+  public void sleepThen(int seconds, final Runnable then) {
+    final Continuation continuation = ContinuationSupport.getContinuation(request);
+    continuation.suspend(response);
+    timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          try {
+            then.run();
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            sendInternalError();
+          } finally {
+            ApiProxy.clearEnvironmentForCurrentThread();
+            continuation.complete();
+          }
+        }},
+        seconds,
+        SECONDS);
+  }
+
+  /**
+   * Replaces the response with a 500, as RootServlet answers unexpected errors, unless it has
+   * already been committed, in which case the client sees the body end early.
+   */
+  private void sendInternalError() {
+    if (response.isCommitted()) {
+      return;
+    }
+    response.reset();
+    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    response.setContentType(PLAIN_TEXT_UTF_8.toString());
+    try {
+      try {
+        response.getWriter().write("Bad request");
+      } catch (IllegalStateException e) {
+        // The failed write had already opened the output stream.
+        response.getOutputStream().write("Bad request".getBytes(UTF_8));
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Couldn't send error", e);
+    }
+  }
+}
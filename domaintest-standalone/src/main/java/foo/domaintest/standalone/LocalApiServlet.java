@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+import foo.domaintest.util.Sleeper;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Wraps a servlet so that it runs with the App Engine API environment on the request thread.
+ * <p>
+ * The App Engine runtime sets up an {@link Environment} on every request thread, and the API
+ * factories (memcache, task queue, etc.) won't work without one. The embedded server's threads
+ * have no environment, so we install a shared one around each request.
+ * <p>
+ * If given a timer, this also lets requests that sleep suspend instead of blocking a thread. See
+ * {@link Sleeper#DEFERRED_SLEEPER_ATTRIBUTE}.
+ */
+class LocalApiServlet extends HttpServlet {
+
+  private final Environment environment;
+  private final Servlet delegate;
+  private final ScheduledExecutorService sleepTimer;
+
+  /** Creates a wrapper that defers sleeps on {@code sleepTimer}, or blocks if it is null. */
+  LocalApiServlet(
+      Environment environment, Servlet delegate, ScheduledExecutorService sleepTimer) {
+    this.environment = environment;
+    this.delegate = delegate;
+    this.sleepTimer = sleepTimer;
+  }
+
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    delegate.init(config);
+  }
+
+  @Override
+  public void service(ServletRequest request, ServletResponse response)
+      throws ServletException, IOException {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    if (sleepTimer != null) {
+      request.setAttribute(
+          Sleeper.DEFERRED_SLEEPER_ATTRIBUTE,
+          new ContinuationSleeper(
+              sleepTimer, environment, request, (HttpServletResponse) response));
+    }
+    try {
+      delegate.service(request, response);
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    delegate.destroy();
+    super.destroy();
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import foo.domaintest.RootServlet;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link RootServlet} in an embedded Jetty server, outside of App Engine.
+ * <p>
+ * Memcache, the task queue and URLFetch are served by the in-memory stubs from the App Engine
+ * testing library. Metrics export stays disabled unless {@code foo.domaintest.projectid} is set,
+ * and even then tasks are only queued, never run. This is meant for load testing and profiling
+ * with normal JVM tools, not for serving production traffic.
+ * <p>
+ * Optionally, requests that sleep can be suspended with a Jetty continuation and resumed from a
+ * timer, so that a slow response doesn't hold one of the server's threads while it waits.
+ */
+public class StandaloneServer {
+
+  private static final Logger logger = Logger.getLogger(StandaloneServer.class.getName());
+
+  private static final int DEFAULT_PORT = 8080;
+  private static final int DEFAULT_MAX_THREADS = 200;
+
+  /** System properties that appengine-web.xml would otherwise set, if not already specified. */
+  private static final ImmutableMap<String, String> DEFAULT_PROPERTIES = ImmutableMap.of(
+      "foo.domaintest.sourceurl", "https://github.com/google/domaintest");
+
+  private final Server server;
+  private final ScheduledExecutorService sleepTimer;
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig(),
+      new LocalURLFetchServiceTestConfig());
+
+  /** Creates a server that will listen on the given port, or on any free port if it is 0. */
+  public StandaloneServer(int port) {
+    this(port, DEFAULT_MAX_THREADS, false);
+  }
+
+  /**
+   * Creates a server with at most {@code maxThreads} request threads. If {@code deferSleeps} is
+   * set, sleeping requests are suspended rather than holding one of those threads.
+   */
+  public StandaloneServer(int port, int maxThreads, boolean deferSleeps) {
+    this.server = new Server(port);
+    this.server.setThreadPool(new QueuedThreadPool(maxThreads));
+    this.sleepTimer = deferSleeps
+        ? Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sleep-timer-%d").build())
+        : null;
+  }
+
+  public void start() throws Exception {
+    checkState(!server.isStarted(), "Already started");
+    for (Entry<String, String> property : DEFAULT_PROPERTIES.entrySet()) {
+      if (System.getProperty(property.getKey()) == null) {
+        System.setProperty(property.getKey(), property.getValue());
+      }
+    }
+    helper.setUp();
+    // setUp() only installs the environment on this thread, so share it with the request threads.
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(
+        new ServletHolder(new LocalApiServlet(
+            ApiProxy.getCurrentEnvironment(), new RootServlet(), sleepTimer)),
+        "/*");
+    server.setHandler(context);
+    server.start();
+  }
+
+  /** Returns the port the server is listening on. */
+  public int getPort() {
+    return server.getConnectors()[0].getLocalPort();
+  }
+
+  public void stop() throws Exception {
+    try {
+      server.stop();
+    } finally {
+      if (sleepTimer != null) {
+        sleepTimer.shutdownNow();
+      }
+      helper.tearDown();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    StandaloneServer server = new StandaloneServer(
+        args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT,
+        Integer.getInteger("foo.domaintest.maxthreads", DEFAULT_MAX_THREADS),
+        Boolean.getBoolean("foo.domaintest.defersleeps"));
+    server.start();
+    logger.info(String.format("Started on port %d in %d ms",
+        server.getPort(), stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+    server.server.join();
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Unit tests for {@link ContinuationSleeper}. */
+@RunWith(MockitoJUnitRunner.class)
+public class ContinuationSleeperTest {
+
+  @Mock ScheduledExecutorService timer;
+  @Mock Environment environment;
+  @Mock ServletRequest request;
+  @Mock HttpServletResponse response;
+  @Mock Continuation continuation;
+  @Captor ArgumentCaptor<Runnable> wakeUp;
+
+  StringWriter writer = new StringWriter();
+  ContinuationSleeper sleeper;
+
+  @Before
+  public void before() throws Exception {
+    when(request.getAttribute(Continuation.ATTRIBUTE)).thenReturn(continuation);
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    sleeper = new ContinuationSleeper(timer, environment, request, response);
+  }
+
+  /** Sleeps, running {@code then}, and returns what the timer was asked to run. */
+  Runnable sleepThen(Runnable then) {
+    sleeper.sleepThen(5, then);
+    verify(continuation).suspend(response);
+    verify(timer).schedule(wakeUp.capture(), eq(5L), eq(SECONDS));
+    return wakeUp.getValue();
+  }
+
+  @Test
+  public void testSleepThen() {
+    final Environment[] seen = new Environment[1];
+    Runnable wakeUp = sleepThen(new Runnable() {
+        @Override
+        public void run() {
+          seen[0] = ApiProxy.getCurrentEnvironment();
+        }});
+    verify(continuation, never()).complete();
+    wakeUp.run();
+    assertSame(environment, seen[0]);
+    assertNull(ApiProxy.getCurrentEnvironment());
+    verify(continuation).complete();
+  }
+
+  @Test
+  public void testSleepThen_failure() {
+    Runnable wakeUp = sleepThen(new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException("Write failed");
+        }});
+    wakeUp.run();
+    verify(response).reset();
+    verify(response).setStatus(500);
+    assertEquals("Bad request", writer.toString());
+    verify(continuation).complete();
+  }
+
+  @Test
+  public void testSleepThen_failureAfterCommit() {
+    when(response.isCommitted()).thenReturn(true);
+    Runnable wakeUp = sleepThen(new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException("Write failed");
+        }});
+    wakeUp.run();
+    verify(response, never()).setStatus(anyInt());
+    assertEquals("", writer.toString());
+    verify(continuation).complete();
+  }
+}
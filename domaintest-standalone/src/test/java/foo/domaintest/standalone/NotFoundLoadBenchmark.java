@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test that floods a {@link StandaloneServer} with requests for paths that don't exist, the
+ * way bots probing for stashed content do, and reports throughput and latency of the 404s. Run
+ * with {@code mvn test-compile exec:java -pl domaintest-standalone -Dexec.classpathScope=test
+ * -Dexec.mainClass=foo.domaintest.standalone.NotFoundLoadBenchmark}.
+ */
+public class NotFoundLoadBenchmark {
+
+  private static final int SERVER_THREADS = 16;
+  private static final int CLIENTS = 32;
+  private static final int REQUESTS_PER_CLIENT = 2000;
+  /** Rounds to run before the measured one, to warm up the JIT. */
+  private static final int WARMUP_ROUNDS = 2;
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("foo.domaintest.disableratelimits", "true");
+    System.setProperty("foo.domaintest.maxinflight", String.valueOf(CLIENTS));
+    System.setProperty("foo.domaintest.maxinflightperaction", String.valueOf(CLIENTS));
+    StandaloneServer server = new StandaloneServer(0, SERVER_THREADS, false);
+    server.start();
+    try {
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        run(server.getPort());
+      }
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      List<Long> latencies = run(server.getPort());
+      report(latencies, stopwatch.elapsed(MILLISECONDS));
+    } finally {
+      server.stop();
+    }
+  }
+
+  /** Returns the latencies in milliseconds of all of the requests. */
+  private static List<Long> run(final int port) throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+    try {
+      List<Callable<List<Long>>> tasks = new ArrayList<>();
+      for (int i = 0; i < CLIENTS; i++) {
+        tasks.add(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() throws Exception {
+              List<Long> latencies = new ArrayList<>();
+              for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                latencies.add(fetchNotFound(port, "/nonexistent/" + UUID.randomUUID()));
+              }
+              return latencies;
+            }});
+      }
+      List<Long> latencies = new ArrayList<>();
+      for (Future<List<Long>> future : clients.invokeAll(tasks)) {
+        latencies.addAll(future.get());
+      }
+      return latencies;
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  private static long fetchNotFound(int port, String path) throws Exception {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+      throw new IllegalStateException("Unexpected response code " + connection.getResponseCode());
+    }
+    // Read the whole error body so the connection can be reused.
+    try (InputStream in = connection.getErrorStream()) {
+      ByteStreams.toByteArray(in);
+    }
+    return stopwatch.elapsed(MILLISECONDS);
+  }
+
+  private static void report(List<Long> latencies, long elapsedMillis) {
+    Collections.sort(latencies);
+    System.out.printf("%d requests in %d ms (%d/s), p50 %d ms, p99 %d ms, max %d ms%n",
+        latencies.size(),
+        elapsedMillis,
+        latencies.size() * 1000L / elapsedMillis,
+        percentile(latencies, 50),
+        percentile(latencies, 99),
+        latencies.get(latencies.size() - 1));
+  }
+
+  private static long percentile(List<Long> sorted, int percent) {
+    return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percent / 100));
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static com.google.common.collect.Iterables.concat;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import foo.domaintest.action.Action;
+import foo.domaintest.action.ActionDelegator;
+import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.GlobalModule;
+import foo.domaintest.action.RequestModule;
+import foo.domaintest.email.EmailApiModule;
+import foo.domaintest.http.EchoAction;
+import foo.domaintest.http.HttpApiModule;
+import foo.domaintest.http.StashAction;
+import foo.domaintest.http.TempAction;
+import foo.domaintest.landing.LandingAction;
+import foo.domaintest.landing.LandingModule;
+import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.impl.MetricsModule;
+import foo.domaintest.warmup.WarmupModule;
+
+import dagger.ObjectGraph;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Microbenchmark of the per-request dispatch in {@code RootServlet}, from building the request
+ * graph to having an injected action, for a few typical paths. It compares the original dispatch,
+ * which extended the global graph with every request module and injected a reflectively created
+ * action, against each module only being installed for its own actions, and then against Dagger
+ * also constructing the action. Actions aren't run. Run with {@code mvn test-compile exec:java
+ * -pl domaintest-standalone -Dexec.classpathScope=test
+ * -Dexec.mainClass=foo.domaintest.standalone.RequestGraphBenchmark}.
+ */
+public class RequestGraphBenchmark {
+
+  /** Request paths and query strings, covering each of the API modules that serves traffic. */
+  private static final ImmutableList<String[]> REQUESTS = ImmutableList.of(
+      new String[] {"/echo", "status=200&payload=foo&mime=text%2Fplain"},
+      new String[] {"/stash", "payload=foo"},
+      new String[] {"/temp/0123456789abcdef", null},
+      new String[] {"/", null});
+
+  private static final ImmutableList<Object> ALL_MODULES = ImmutableList.<Object>of(
+      EmailApiModule.class,
+      HttpApiModule.class,
+      LandingModule.class,
+      MetricsModule.class,
+      WarmupModule.class);
+
+  private static final ImmutableMap<Class<?>, Class<?>> ACTION_MODULES =
+      new ImmutableMap.Builder<Class<?>, Class<?>>()
+          .put(EchoAction.class, HttpApiModule.class)
+          .put(StashAction.class, HttpApiModule.class)
+          .put(TempAction.class, HttpApiModule.class)
+          .put(LandingAction.class, LandingModule.class)
+          .build();
+
+  private static final int ITERATIONS = 50000;
+
+  /** Rounds to run before the measured one, to warm up the JIT. */
+  private static final int WARMUP_ROUNDS = 3;
+
+  private static final ObjectGraph GLOBAL_GRAPH = ObjectGraph.create(GlobalModule.class);
+
+  @SuppressWarnings("unchecked")
+  private static final ActionDelegator DELEGATOR = new ActionDelegator(concat(
+      EmailApiModule.ACTIONS,
+      HttpApiModule.ACTIONS,
+      LandingModule.ACTIONS,
+      MetricsModule.ACTIONS,
+      WarmupModule.ACTIONS));
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /** How the request graph is built and the action instantiated. */
+  private enum Dispatch {
+    /** Every request module, with an action from newInstance() injected into the graph. */
+    ALL_MODULES_NEW_INSTANCE,
+    /** Only the action's module, with an action from newInstance() injected into the graph. */
+    ACTION_MODULE_NEW_INSTANCE,
+    /** Only the action's module, with the action constructed and injected by the graph. */
+    ACTION_MODULE_GET
+  }
+
+  /** Keeps the JIT from eliminating the dispatch as dead code. */
+  private static int sink;
+
+  public static void main(String[] args) throws Exception {
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    try {
+      for (String[] request : REQUESTS) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+          for (Dispatch dispatch : Dispatch.values()) {
+            run(dispatch, request[0], request[1]);
+          }
+        }
+        for (Dispatch dispatch : Dispatch.values()) {
+          long allocatedBytes = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+          Stopwatch stopwatch = Stopwatch.createStarted();
+          run(dispatch, request[0], request[1]);
+          long nanos = stopwatch.elapsed(NANOSECONDS);
+          allocatedBytes =
+              THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBytes;
+          System.out.printf("%-24s %-26s %6d ns/dispatch %7d bytes/dispatch%n",
+              request[0], dispatch, nanos / ITERATIONS, allocatedBytes / ITERATIONS);
+        }
+      }
+      System.out.printf("(%d)%n", sink);
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  private static void run(Dispatch dispatch, String path, String query) throws Exception {
+    RegisteredAction registeredAction = DELEGATOR.getRegisteredAction(path);
+    Class<? extends Action> actionClass = registeredAction.getActionClass();
+    HttpServletRequest request = fakeRequest(path, query);
+    HttpServletResponse response = fake(HttpServletResponse.class, null);
+    for (int i = 0; i < ITERATIONS; i++) {
+      RequestModule requestModule =
+          new RequestModule(request, response, registeredAction, PhaseTimer.DISABLED);
+      ObjectGraph requestGraph;
+      Action action;
+      switch (dispatch) {
+        case ALL_MODULES_NEW_INSTANCE:
+          requestGraph = GLOBAL_GRAPH.plus(requestModule).plus(ALL_MODULES.toArray());
+          requestGraph.get(Metrics.class);
+          action = requestGraph.inject(actionClass.newInstance());
+          break;
+        case ACTION_MODULE_NEW_INSTANCE:
+          requestGraph = GLOBAL_GRAPH.plus(requestModule, ACTION_MODULES.get(actionClass));
+          requestGraph.get(Metrics.class);
+          action = requestGraph.inject(actionClass.newInstance());
+          break;
+        default:
+          requestGraph = GLOBAL_GRAPH.plus(requestModule, ACTION_MODULES.get(actionClass));
+          requestGraph.get(Metrics.class);
+          action = requestGraph.get(actionClass);
+          break;
+      }
+      sink += action.hashCode();
+    }
+  }
+
+  private static HttpServletRequest fakeRequest(String path, String query) {
+    return fake(HttpServletRequest.class, ImmutableMap.<String, Object>of(
+        "getMethod", "GET",
+        "getRequestURI", path,
+        "getRequestURL", new StringBuffer("http://domaintest.xn--q9jyb4c" + path),
+        "getQueryString", query == null ? "" : query,
+        "getRemoteAddr", "192.0.2.1"));
+  }
+
+  /**
+   * Returns a fake that answers the named no-arg methods with fixed values, and everything else
+   * with null, false or 0. Unlike a mock, it doesn't record its calls, so it doesn't grow over
+   * the iterations.
+   */
+  private static <T> T fake(Class<T> type, final ImmutableMap<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(
+        type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if (values != null && values.containsKey(method.getName())) {
+                return values.get(method.getName());
+              }
+              Class<?> returnType = method.getReturnType();
+              if (returnType == boolean.class) {
+                return false;
+              } else if (returnType == int.class) {
+                return method.getName().equals("getContentLength") ? -1 : 0;
+              } else if (returnType == long.class) {
+                return 0L;
+              }
+              return null;
+            }}));
+  }
+}
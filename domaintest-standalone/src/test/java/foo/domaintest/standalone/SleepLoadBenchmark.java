@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test comparing blocking and deferred sleeps on a sleep-heavy request mix.
+ * <p>
+ * Each mode starts a {@link StandaloneServer} with a small request thread pool and hits it with
+ * many concurrent clients, some of which ask for a one second sleep. With blocking sleeps, the
+ * sleeping requests tie up the pool and the fast requests queue behind them; with deferred sleeps
+ * they shouldn't. Run with {@code mvn test-compile exec:java -pl domaintest-standalone
+ * -Dexec.classpathScope=test -Dexec.mainClass=foo.domaintest.standalone.SleepLoadBenchmark}.
+ */
+public class SleepLoadBenchmark {
+
+  private static final int SERVER_THREADS = 16;
+  private static final int CLIENTS = 200;
+  private static final int REQUESTS_PER_CLIENT = 20;
+  /** One in this many requests sleeps. */
+  private static final int SLEEP_EVERY = 5;
+
+  public static void main(String[] args) throws Exception {
+    // This measures how sleeps are handled, so don't let admission control or rate limits get in
+    // the way.
+    System.setProperty("foo.domaintest.disableratelimits", "true");
+    System.setProperty("foo.domaintest.maxinflight", String.valueOf(CLIENTS));
+    System.setProperty("foo.domaintest.maxinflightperaction", String.valueOf(CLIENTS));
+    System.setProperty("foo.domaintest.maxsleeping", String.valueOf(CLIENTS));
+    for (boolean deferSleeps : new boolean[] {false, true}) {
+      StandaloneServer server = new StandaloneServer(0, SERVER_THREADS, deferSleeps);
+      server.start();
+      try {
+        report(deferSleeps ? "deferred sleeps" : "blocking sleeps", run(server.getPort()));
+      } finally {
+        server.stop();
+      }
+    }
+  }
+
+  /** Returns the latencies in milliseconds of the requests that didn't sleep. */
+  private static List<Long> run(final int port) throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+    try {
+      List<Callable<List<Long>>> tasks = new ArrayList<>();
+      for (int i = 0; i < CLIENTS; i++) {
+        final int client = i;
+        tasks.add(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() throws Exception {
+              List<Long> latencies = new ArrayList<>();
+              for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                boolean sleep = (client + j) % SLEEP_EVERY == 0;
+                long latency = fetch(port, sleep ? "/echo?sleep=1&payload=x" : "/echo?payload=x");
+                if (!sleep) {
+                  latencies.add(latency);
+                }
+              }
+              return latencies;
+            }});
+      }
+      List<Long> latencies = new ArrayList<>();
+      for (Future<List<Long>> future : clients.invokeAll(tasks)) {
+        latencies.addAll(future.get());
+      }
+      return latencies;
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  private static long fetch(int port, String pathAndQuery) throws Exception {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + port + pathAndQuery).openConnection();
+    try (InputStream in = connection.getInputStream()) {
+      ByteStreams.toByteArray(in);
+    }
+    return stopwatch.elapsed(MILLISECONDS);
+  }
+
+  private static void report(String mode, List<Long> latencies) {
+    Collections.sort(latencies);
+    System.out.printf("%s: %d fast requests, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+        mode,
+        latencies.size(),
+        percentile(latencies, 50),
+        percentile(latencies, 90),
+        percentile(latencies, 99),
+        latencies.get(latencies.size() - 1));
+  }
+
+  private static long percentile(List<Long> sorted, int percent) {
+    return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percent / 100));
+  }
+}
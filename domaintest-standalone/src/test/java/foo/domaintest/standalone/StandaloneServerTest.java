@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.standalone;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.CharStreams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link StandaloneServer}. */
+public class StandaloneServerTest {
+
+  StandaloneServer server = new StandaloneServer(0);
+
+  @Before
+  public void before() throws Exception {
+    server.start();
+  }
+
+  @After
+  public void after() throws Exception {
+    server.stop();
+  }
+
+  String fetch(String pathAndQuery) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + server.getPort() + pathAndQuery).openConnection();
+    try (InputStreamReader reader = new InputStreamReader(connection.getInputStream(), UTF_8)) {
+      return CharStreams.toString(reader);
+    }
+  }
+
+  @Test
+  public void testEcho() throws Exception {
+    assertEquals("foo", fetch("/echo?payload=foo"));
+  }
+
+  @Test
+  public void testDeferredSleep() throws Exception {
+    server.stop();
+    // If the sleeping requests held on to the request threads, the fast one would have to wait.
+    server = new StandaloneServer(0, 3, true);
+    server.start();
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      List<Future<String>> slow = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        slow.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              return fetch("/echo?sleep=2&payload=slow");
+            }}));
+      }
+      Thread.sleep(500);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      assertEquals("fast", fetch("/echo?payload=fast"));
+      assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 1000);
+      for (Future<String> future : slow) {
+        assertEquals("slow", future.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStashThenTemp() throws Exception {
+    String tempUrl = fetch("/stash?payload=bar");
+    assertEquals("bar", fetch(new URL(tempUrl).getPath()));
+  }
+}
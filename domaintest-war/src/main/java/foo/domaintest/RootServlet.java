@@ -17,30 +17,56 @@
 package foo.domaintest;
 
 import static com.google.common.collect.Iterables.concat;
+import static com.google.common.net.HttpHeaders.ACCESS_CONTROL_ALLOW_HEADERS;
+import static com.google.common.net.HttpHeaders.ACCESS_CONTROL_ALLOW_METHODS;
 import static com.google.common.net.HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN;
+import static com.google.common.net.HttpHeaders.ACCESS_CONTROL_MAX_AGE;
+import static com.google.common.net.HttpHeaders.ACCESS_CONTROL_REQUEST_HEADERS;
 import static com.google.common.net.HttpHeaders.ORIGIN;
+import static com.google.common.net.HttpHeaders.RETRY_AFTER;
 import static com.google.common.net.HttpHeaders.X_XSS_PROTECTION;
+import static com.google.common.net.MediaType.PLAIN_TEXT_UTF_8;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import foo.domaintest.action.Action;
-import foo.domaintest.action.Action.GetAction;
-import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.ActionDelegator;
 import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.AdmissionController;
+import foo.domaintest.action.DecompressingRequest;
 import foo.domaintest.action.GlobalModule;
 import foo.domaintest.action.HttpErrorException;
+import foo.domaintest.action.HttpErrorException.PayloadTooLargeException;
+import foo.domaintest.action.HttpErrorException.RetryLaterException;
+import foo.domaintest.action.HttpErrorException.ServiceUnavailableException;
+import foo.domaintest.action.HttpErrorException.TooManyRequestsException;
+import foo.domaintest.action.HttpErrorException.UnsupportedMediaTypeException;
+import foo.domaintest.action.NoBodyResponse;
+import foo.domaintest.action.NotFoundAction;
+import foo.domaintest.action.RateLimiter;
 import foo.domaintest.action.RequestModule;
+import foo.domaintest.action.RequestRateLimiter;
+import foo.domaintest.config.SystemProperty;
 import foo.domaintest.email.EmailApiModule;
 import foo.domaintest.http.HttpApiModule;
 import foo.domaintest.landing.LandingModule;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 import foo.domaintest.metrics.impl.MetricsModule;
+import foo.domaintest.warmup.WarmupModule;
 
 import dagger.ObjectGraph;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,65 +76,226 @@ public class RootServlet extends HttpServlet {
 
   private static final Logger logger = Logger.getLogger(RootServlet.class.getName());
 
+  /**
+   * The module that supplies the request-scoped bindings for each action.
+   * <p>
+   * Each of these modules needs a {@link RequestModule} in the graph, and includes everything its
+   * actions inject. Building a request graph from just the one module an action needs, instead of
+   * from every module, keeps the per-request cost of {@link ObjectGraph#plus} down to installing
+   * the bindings that can actually be used.
+   */
+  private static final ImmutableMap<Class<? extends Action>, Class<?>> REQUEST_MODULES =
+      new ImmutableMap.Builder<Class<? extends Action>, Class<?>>()
+          .putAll(forModule(EmailApiModule.class, EmailApiModule.ACTIONS))
+          .putAll(forModule(HttpApiModule.class, HttpApiModule.ACTIONS))
+          .putAll(forModule(LandingModule.class, LandingModule.ACTIONS))
+          .putAll(forModule(MetricsModule.class, MetricsModule.ACTIONS))
+          .putAll(forModule(WarmupModule.class, WarmupModule.ACTIONS))
+          // NotFoundAction is injected by RequestModule and only needs metrics on top of that.
+          .put(NotFoundAction.class, MetricsModule.class)
+          .build();
+
   @SuppressWarnings("unchecked")
   private static final ActionDelegator DELEGATOR = new ActionDelegator(concat(
       EmailApiModule.ACTIONS,
       HttpApiModule.ACTIONS,
       LandingModule.ACTIONS,
-      MetricsModule.ACTIONS));
+      MetricsModule.ACTIONS,
+      WarmupModule.ACTIONS));
+
+  /** Error messages are constants in code, and are all ASCII. */
+  private static final String ERROR_CONTENT_TYPE = PLAIN_TEXT_UTF_8.toString();
 
   /** An {@link ObjectGraph} with globally-scoped bindings. */
   private static final ObjectGraph GLOBAL_GRAPH = ObjectGraph.create(GlobalModule.class);
 
-  /** Modules that supply request-scoped bindings and need a {@link RequestModule} in the graph. */
-  private static final Object[] REQUEST_MODULES = new Object[] {
-      EmailApiModule.class,
-      HttpApiModule.class,
-      LandingModule.class,
-      MetricsModule.class};
+  private static final AdmissionController ADMISSION_CONTROLLER =
+      GLOBAL_GRAPH.get(AdmissionController.class);
+
+  private static final RateLimiter RATE_LIMITER = GLOBAL_GRAPH.get(RateLimiter.class);
+
+  /** How long browsers may cache a CORS preflight response. */
+  @Inject @SystemProperty("corsmaxage") int corsMaxAgeSeconds;
 
-  /** Execute a GET or POST request by injecting and running the appropriate {@link Action}. */
+  public RootServlet() {
+    GLOBAL_GRAPH.inject(this);
+  }
+
+  private static Map<Class<? extends Action>, Class<?>> forModule(
+      Class<?> module, Set<Class<? extends Action>> actions) {
+    return Maps.asMap(actions, Functions.<Class<?>>constant(module));
+  }
+
+  /** Execute a request by injecting and running the appropriate {@link Action}. */
   @Override
   public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // The poorly named method getRequestURI gives the path.
     RegisteredAction registeredAction = DELEGATOR.getRegisteredAction(request.getRequestURI());
-    Action action = registeredAction.getAction();
     String origin = request.getHeader(ORIGIN);
     String method = request.getMethod();
-    if (!(("GET".equals(request.getMethod()) && action instanceof GetAction)
-        || ("POST".equals(request.getMethod()) && action instanceof PostAction)
+    // HEAD is handled as a GET that doesn't write the body.
+    if (!((("GET".equals(method) || "HEAD".equals(method)) && registeredAction.isGetAction())
+        || ("POST".equals(method) && registeredAction.isPostAction())
         || ("OPTIONS".equals(method) && origin != null))) {
-      response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Unsupported method.");
+      sendError(request, response, HttpServletResponse.SC_NOT_IMPLEMENTED, "Unsupported method.");
       return;
     }
-    // Turn off reflected-XSS filtering in modern browsers. Without this, you couldn't execute a
-    // script from a page served via /echo. This protection is useless to us because /stash allows
-    // for a far more powerful stored-XSS (albeit short lived), and in any case we allow scripts.
-    response.addHeader(X_XSS_PROTECTION, "0");
-    // Enable Cross-Origin Resource Sharing. See http://www.w3.org/TR/cors/ for details.
-    if (origin != null) {
-      response.addHeader(ACCESS_CONTROL_ALLOW_ORIGIN, origin);
-      if ("OPTIONS".equals(method)) {  // Only allow OPTIONS to support CORS preflight.
+    addStandardHeaders(request, response);
+    // Only allow OPTIONS to support CORS preflight.
+    if (origin != null && "OPTIONS".equals(method)) {
+      response.addHeader(ACCESS_CONTROL_ALLOW_METHODS, registeredAction.getAllowedMethods());
+      // We don't care what headers are sent, so allow whatever the preflight asks for.
+      String requestHeaders = request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS);
+      if (requestHeaders != null) {
+        response.addHeader(ACCESS_CONTROL_ALLOW_HEADERS, requestHeaders);
+      }
+      response.addHeader(ACCESS_CONTROL_MAX_AGE, String.valueOf(corsMaxAgeSeconds));
+      return;
+    }
+    if ("HEAD".equals(method)) {
+      response = new NoBodyResponse(response);
+    }
+    // Reject bodies that say up front that they are too big without reading any of them.
+    if (request.getContentLength() > registeredAction.getMaxStreamedBodyBytes()) {
+      sendError(request, response, new PayloadTooLargeException("Request body too large"));
+      return;
+    }
+    // Decompress bodies that were sent with a Content-Encoding as they are read.
+    if ("POST".equals(method)) {
+      try {
+        request = DecompressingRequest.wrap(request);
+      } catch (UnsupportedMediaTypeException e) {
+        sendError(request, response, e);
         return;
       }
     }
-    ObjectGraph requestGraph = GLOBAL_GRAPH
-        .plus(new RequestModule(request, response, registeredAction.getPath()))
-        .plus(REQUEST_MODULES);
+    // Check rate limits before doing anything that costs memcache or task queue quota.
+    int retryAfterSeconds = checkRateLimit(request, registeredAction);
+    if (retryAfterSeconds > 0) {
+      sendError(request, response,
+          new TooManyRequestsException("Rate limit exceeded", retryAfterSeconds));
+      return;
+    }
+    if (!ADMISSION_CONTROLLER.tryAdmit(registeredAction, "POST".equals(method))) {
+      // Shed the request before doing any work for it, and without exporting metrics.
+      sendError(request, response, new ServiceUnavailableException(
+          "Overloaded, try again", AdmissionController.RETRY_AFTER_SECONDS));
+      return;
+    }
+    try {
+      run(request, response, registeredAction);
+    } finally {
+      // A response that is still sleeping is covered by its sleep's admission from here on.
+      ADMISSION_CONTROLLER.release(registeredAction);
+    }
+  }
+
+  /**
+   * Applies the action's rate limit, if it has one, to the client's IP address and to the token in
+   * the path, if any. A token in the params is checked when the action reads it, since that may
+   * mean reading the POST body. See {@link RequestRateLimiter}.
+   *
+   * @return 0 if the request is allowed, or else how many seconds until it would be
+   */
+  private static int checkRateLimit(HttpServletRequest request, RegisteredAction registeredAction) {
+    RequestRateLimiter rateLimiter =
+        new RequestRateLimiter(RATE_LIMITER, registeredAction, request.getRemoteAddr());
+    int retryAfterSeconds = rateLimiter.acquireForIp();
+    String token = registeredAction.getPathVariables(request.getRequestURI()).get("token");
+    if (retryAfterSeconds == 0 && token != null) {
+      try {
+        rateLimiter.acquireForToken(token);
+      } catch (TooManyRequestsException e) {
+        return e.getRetryAfterSeconds();
+      }
+    }
+    return retryAfterSeconds;
+  }
+
+  /** Injects and runs the action for a request that has been admitted. */
+  private void run(
+      HttpServletRequest request, HttpServletResponse response, RegisteredAction registeredAction)
+      throws IOException {
+    PhaseTimer timer = PhaseTimer.forQuery(request.getQueryString());
+    long injectStart = timer.start();
+    ObjectGraph requestGraph = GLOBAL_GRAPH.plus(
+        new RequestModule(request, response, registeredAction, timer),
+        REQUEST_MODULES.get(registeredAction.getActionClass()));
     Metrics metrics = requestGraph.get(Metrics.class);
     try {
-      requestGraph.inject(action).run();
+      Action action = requestGraph.get(registeredAction.getActionClass());
+      timer.stop(Phase.INJECT, injectStart);
+      action.run();
     } catch (HttpErrorException e) {
       metrics.setResponseCode(e.getResponseCode());
       metrics.addActivity("error");  // Mark this as user error.
-      response.sendError(e.getResponseCode(), e.getMessage());
+      sendError(request, response, e);
     } catch (Exception e) {
       logger.log(Level.SEVERE, e.getMessage(), e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Bad request");
+      sendError(request, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Bad request");
       return;  // Return without exporting metrics.
     }
     if (registeredAction.isExportingMetrics()) {
       metrics.export();
     }
   }
+
+  /** Adds the headers that every response gets, errors included. */
+  private static void addStandardHeaders(
+      HttpServletRequest request, HttpServletResponse response) {
+    // Turn off reflected-XSS filtering in modern browsers. Without this, you couldn't execute a
+    // script from a page served via /echo. This protection is useless to us because /stash allows
+    // for a far more powerful stored-XSS (albeit short lived), and in any case we allow scripts.
+    response.addHeader(X_XSS_PROTECTION, "0");
+    // Enable Cross-Origin Resource Sharing. See http://www.w3.org/TR/cors/ for details.
+    String origin = request.getHeader(ORIGIN);
+    if (origin != null) {
+      response.addHeader(ACCESS_CONTROL_ALLOW_ORIGIN, origin);
+    }
+  }
+
+  private static void sendError(
+      HttpServletRequest request, HttpServletResponse response, HttpErrorException e)
+      throws IOException {
+    sendError(request, response, e.getResponseCode(), e.getMessage());
+    if (e instanceof RetryLaterException) {
+      response.setHeader(
+          RETRY_AFTER, String.valueOf(((RetryLaterException) e).getRetryAfterSeconds()));
+    }
+  }
+
+  /**
+   * Sends an error with the message as a short plain text body. This is much cheaper than
+   * {@link HttpServletResponse#sendError}, which has the container render an HTML error page.
+   * Anything that was set for the response that failed, such as its headers, is dropped, since
+   * none of it applies to the error.
+   * <p>
+   * Errors can also happen while a body is being streamed, for example when a streamed POST body
+   * turns out to be too big, or expands too much as it is decompressed. If none of the response
+   * has gone out yet, whatever was buffered is dropped and the error is sent instead. If the
+   * status and part of the body have already gone out, it's too late for an error status, so this
+   * throws instead. The container then cuts the response off rather than finishing it, and the
+   * client sees a failed transfer instead of a truncated 200.
+   *
+   * @throws IOException if the response has already been committed
+   */
+  private static void sendError(
+      HttpServletRequest request, HttpServletResponse response, int responseCode, String message)
+      throws IOException {
+    if (response.isCommitted()) {
+      throw new IOException(String.format(
+          "Aborting committed response instead of sending %d: %s", responseCode, message));
+    }
+    response.reset();
+    addStandardHeaders(request, response);
+    response.setStatus(responseCode);
+    response.setContentType(ERROR_CONTENT_TYPE);
+    response.setContentLength(message.length());
+    try {
+      response.getWriter().write(message);
+    } catch (IllegalStateException e) {
+      // The body was already being written as bytes, so the writer can't be used.
+      response.getOutputStream().write(message.getBytes(US_ASCII));
+    }
+  }
 }
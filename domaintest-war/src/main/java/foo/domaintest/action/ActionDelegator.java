@@ -17,39 +17,79 @@
 package foo.domaintest.action;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.collect.Iterables.transform;
-import static com.google.common.collect.Maps.uniqueIndex;
 
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.base.Splitter;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ObjectArrays;
+import foo.domaintest.action.Action.GetAction;
+import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.MaxBodySize;
 import foo.domaintest.action.annotation.NoMetrics;
+import foo.domaintest.action.annotation.RateLimit;
 
-import java.util.NavigableMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
-/** Delegator to return an {@link Action} for a given path. */
+/**
+ * Delegator to return an {@link Action} for a given path.
+ * <p>
+ * Paths are matched against a trie of path segments built once from the {@link ForPath} values.
+ * Literal segments take precedence over single-segment wildcards, which take precedence over a
+ * trailing "/*", and matching walks the request path in place without allocating.
+ */
 public class ActionDelegator {
 
-  private final NavigableMap<String, RegisteredAction> actionPaths;
+  private static final Splitter PATH_SPLITTER = Splitter.on('/');
+
+  /** The largest request body accepted by actions without a {@link MaxBodySize}. */
+  private static final int DEFAULT_MAX_BODY_BYTES = 1 << 20;
 
   private static final RegisteredAction NOT_FOUND_ACTION =
       new RegisteredAction(NotFoundAction.class, null);
 
+  private final Node root = new Node();
+
   /** A mapping of a recognized path to an {@link Action}. */
-   public static class RegisteredAction {
+  public static class RegisteredAction {
     final String path;
+    final ImmutableList<String> segments;
     final Class<? extends Action> actionClass;
     final boolean exportingMetrics;
+    final boolean getAction;
+    final boolean postAction;
+    final String allowedMethods;
+    final RateLimit rateLimit;
+    final int maxBodyBytes;
+    final int maxStreamedBodyBytes;
 
     RegisteredAction(Class<? extends Action> actionClass) {
       this(actionClass, actionClass.getAnnotation(ForPath.class).value());
-      checkArgument(path.startsWith("/"));
+      checkArgument(path.startsWith("/"), "Path must start with a slash: %s", path);
     }
 
     RegisteredAction(Class<? extends Action> actionClass, String path) {
       this.actionClass = actionClass;
       this.path = path;
+      this.segments = path == null
+          ? ImmutableList.<String>of()
+          : ImmutableList.copyOf(PATH_SPLITTER.split(path.substring(1)));
       this.exportingMetrics = !actionClass.isAnnotationPresent(NoMetrics.class);
+      this.getAction = GetAction.class.isAssignableFrom(actionClass);
+      this.postAction = PostAction.class.isAssignableFrom(actionClass);
+      this.allowedMethods = Joiner.on(", ").join(new ImmutableList.Builder<String>()
+          .addAll(getAction ? ImmutableList.of("GET", "HEAD") : ImmutableList.<String>of())
+          .addAll(postAction ? ImmutableList.of("POST") : ImmutableList.<String>of())
+          .add("OPTIONS")
+          .build());
+      this.rateLimit = actionClass.getAnnotation(RateLimit.class);
+      MaxBodySize maxBodySize = actionClass.getAnnotation(MaxBodySize.class);
+      this.maxBodyBytes = maxBodySize == null ? DEFAULT_MAX_BODY_BYTES : maxBodySize.value();
+      this.maxStreamedBodyBytes =
+          maxBodySize == null ? maxBodyBytes : Math.max(maxBodyBytes, maxBodySize.streamed());
     }
 
     public String getPath() {
@@ -60,40 +100,180 @@ public class ActionDelegator {
       return exportingMetrics;
     }
 
-    public Action getAction() {
-      try {
-        return actionClass.newInstance();
-      } catch (InstantiationException | IllegalAccessException e) {
-        throw new RuntimeException(e);
+    /** Whether the action can handle GET requests, without having to instantiate it. */
+    public boolean isGetAction() {
+      return getAction;
+    }
+
+    /** Whether the action can handle POST requests, without having to instantiate it. */
+    public boolean isPostAction() {
+      return postAction;
+    }
+
+    /** Returns the methods the action supports, formatted for an Allow-style header. */
+    public String getAllowedMethods() {
+      return allowedMethods;
+    }
+
+    /** Returns the largest request body, in bytes, that the action reads into memory. */
+    public int getMaxBodyBytes() {
+      return maxBodyBytes;
+    }
+
+    /** Returns the largest request body, in bytes, that the action accepts at all. */
+    public int getMaxStreamedBodyBytes() {
+      return maxStreamedBodyBytes;
+    }
+
+    /** Returns the action's rate limit, or null if it isn't limited. */
+    public RateLimit getRateLimit() {
+      return rateLimit;
+    }
+
+    /**
+     * Returns the action class.
+     * <p>
+     * Actions are instantiated by passing this to {@link dagger.ObjectGraph#get} on the request
+     * graph, which constructs and injects them in one step through the adapters that Dagger
+     * generates at compile time.
+     */
+    public Class<? extends Action> getActionClass() {
+      return actionClass;
+    }
+
+    /**
+     * Returns the values of the "{name}" segments of this action's path in a matching request path.
+     * <p>
+     * This is only computed on demand, so that routing itself never has to allocate.
+     */
+    public ImmutableMap<String, String> getPathVariables(String requestPath) {
+      ImmutableMap.Builder<String, String> variables = new ImmutableMap.Builder<>();
+      if (segments.isEmpty()) {
+        return variables.build();
+      }
+      Iterator<String> requestSegments = PATH_SPLITTER.split(requestPath.substring(1)).iterator();
+      for (String segment : segments) {
+        if (!requestSegments.hasNext()) {
+          break;
+        }
+        String requestSegment = requestSegments.next();
+        if (isVariable(segment)) {
+          variables.put(segment.substring(1, segment.length() - 1), requestSegment);
+        }
+      }
+      return variables.build();
+    }
+  }
+
+  /** A node in the path trie, corresponding to one segment of one or more registered paths. */
+  private static class Node {
+    String[] literalSegments = new String[0];
+    Node[] literalChildren = new Node[0];
+
+    /** Child matching any single non-empty segment, for "*" and "{name}" path segments. */
+    Node wildcardChild;
+
+    /** The action registered at exactly the path ending at this node. */
+    RegisteredAction action;
+
+    /** The action registered at the path ending at this node followed by "/*". */
+    RegisteredAction subpathAction;
+
+    Node getOrAddChild(String segment) {
+      if (segment.equals("*") || isVariable(segment)) {
+        if (wildcardChild == null) {
+          wildcardChild = new Node();
+        }
+        return wildcardChild;
       }
+      checkArgument(
+          segment.indexOf('*') == -1 && segment.indexOf('{') == -1,
+          "Wildcards and path variables must be whole path segments: %s", segment);
+      for (int i = 0; i < literalSegments.length; i++) {
+        if (literalSegments[i].equals(segment)) {
+          return literalChildren[i];
+        }
+      }
+      Node child = new Node();
+      literalSegments = ObjectArrays.concat(literalSegments, segment);
+      literalChildren = ObjectArrays.concat(literalChildren, child);
+      return child;
     }
   }
 
   public ActionDelegator(Iterable<Class<? extends Action>> actionClasses) {
-    // Using unique index here means we will get an early runtime error if there are two actions
-    // with duplicate paths. Note that this will not detect duplications due to wildcards.
-    this.actionPaths = ImmutableSortedMap.copyOf(uniqueIndex(
-        transform(actionClasses, new Function<Class<? extends Action>, RegisteredAction>() {
-          @Override
-          public RegisteredAction apply(Class<? extends Action> action) {
-            return new RegisteredAction(action);
-          }}),
-        new Function<RegisteredAction, String>() {
-          @Override
-          public String apply(RegisteredAction registeredAction) {
-            // We strip out wildcards in the keys to support the NavigableMap.floorKey() call.
-            String path = registeredAction.getPath();
-            return path.endsWith("/*") ? path.substring(0, path.length() - 1) : path;
-          }}));
+    for (Class<? extends Action> actionClass : actionClasses) {
+      add(new RegisteredAction(actionClass));
+    }
+  }
+
+  /**
+   * Adds a registered action to the trie.
+   *
+   * @throws IllegalArgumentException if another action is registered for a path that would match
+   *     exactly the same requests, such as "/a/{x}/b" and "/a/{y}/b", or if the path uses the
+   *     same variable name twice, such as "/a/{x}/{x}".
+   */
+  private void add(RegisteredAction registeredAction) {
+    Node node = root;
+    ImmutableList<String> segments = registeredAction.segments;
+    int last = segments.size() - 1;
+    boolean matchesSubpaths = segments.get(last).equals("*");
+    Set<String> variables = new HashSet<>();
+    for (String segment : matchesSubpaths ? segments.subList(0, last) : segments) {
+      checkArgument(!isVariable(segment) || variables.add(segment),
+          "Duplicate path variable %s: %s", segment, registeredAction.getPath());
+      node = node.getOrAddChild(segment);
+    }
+    RegisteredAction existing = matchesSubpaths ? node.subpathAction : node.action;
+    checkArgument(existing == null, "Conflicting paths: %s and %s",
+        existing == null ? null : existing.getPath(), registeredAction.getPath());
+    if (matchesSubpaths) {
+      node.subpathAction = registeredAction;
+    } else {
+      node.action = registeredAction;
+    }
   }
 
   public RegisteredAction getRegisteredAction(String requestPath) {
-    String floorPath = actionPaths.floorKey(requestPath);
-    if (floorPath != null && actionPaths.get(floorPath).getPath().endsWith("/*")
-        ? requestPath.startsWith(floorPath)
-        : requestPath.equals(floorPath)) {
-      return actionPaths.get(floorPath);
+    RegisteredAction registeredAction = requestPath.startsWith("/")
+        ? match(root, requestPath, 1)
+        : null;
+    return registeredAction == null ? NOT_FOUND_ACTION : registeredAction;
+  }
+
+  /**
+   * Matches the request path from {@code start}, which follows a slash, against the descendants
+   * of {@code node}, backtracking to less specific matches when a more specific branch fails.
+   */
+  private static RegisteredAction match(Node node, String path, int start) {
+    int end = path.indexOf('/', start);
+    end = end == -1 ? path.length() : end;
+    int length = end - start;
+    for (int i = 0; i < node.literalSegments.length; i++) {
+      String segment = node.literalSegments[i];
+      if (segment.length() == length && path.regionMatches(start, segment, 0, length)) {
+        RegisteredAction registeredAction = matchChild(node.literalChildren[i], path, end);
+        if (registeredAction != null) {
+          return registeredAction;
+        }
+        break;  // Literal segments are unique, so no other one can match.
+      }
+    }
+    if (node.wildcardChild != null && length > 0) {
+      RegisteredAction registeredAction = matchChild(node.wildcardChild, path, end);
+      if (registeredAction != null) {
+        return registeredAction;
+      }
     }
-    return NOT_FOUND_ACTION;
+    return node.subpathAction;
+  }
+
+  private static RegisteredAction matchChild(Node child, String path, int end) {
+    return end == path.length() ? child.action : match(child, path, end + 1);
+  }
+
+  private static boolean isVariable(String segment) {
+    return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
   }
 }
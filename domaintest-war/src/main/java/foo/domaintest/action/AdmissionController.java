@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.HttpErrorException.ServiceUnavailableException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sheds load before an overloaded instance runs out of threads or memory.
+ * <p>
+ * Requests are counted in flight, both in total and per action class, from dispatch until the
+ * servlet returns. Requests that sleep are also counted from the start of the sleep until it ends,
+ * and since they hold the most resources for the least useful work they are shed first: once half
+ * the in-flight limit is used, or the heap is nearly full, new sleeps are refused while cheap
+ * requests are still admitted. POST requests, which buffer their bodies, are refused under memory
+ * pressure too.
+ * <p>
+ * All counters are atomics, so admission never blocks.
+ */
+public class AdmissionController {
+
+  /** How long shed clients are told to wait before retrying. */
+  public static final int RETRY_AFTER_SECONDS = 1;
+
+  private final int maxInFlight;
+  private final int maxInFlightPerAction;
+  private final int maxSleeping;
+  private final long maxUsedHeapBytes;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger sleeping = new AtomicInteger();
+  private final ConcurrentMap<Class<?>, AtomicInteger> inFlightByAction =
+      new ConcurrentHashMap<>();
+
+  public AdmissionController(
+      int maxInFlight, int maxInFlightPerAction, int maxSleeping, double maxUsedHeapFraction) {
+    this.maxInFlight = maxInFlight;
+    this.maxInFlightPerAction = maxInFlightPerAction;
+    this.maxSleeping = maxSleeping;
+    this.maxUsedHeapBytes = (long) (Runtime.getRuntime().maxMemory() * maxUsedHeapFraction);
+  }
+
+  /**
+   * Counts a request for {@code action} as in flight, or returns false if it should be shed. Every
+   * request that is admitted must be followed by a call to {@link #release}.
+   */
+  public boolean tryAdmit(RegisteredAction action, boolean post) {
+    AtomicInteger actionInFlight = getActionInFlight(action.getActionClass());
+    int total = inFlight.incrementAndGet();
+    int forAction = actionInFlight.incrementAndGet();
+    if (total > maxInFlight || forAction > maxInFlightPerAction || (post && isHeapLow())) {
+      inFlight.decrementAndGet();
+      actionInFlight.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /** Stops counting a request that was admitted by {@link #tryAdmit}. */
+  public void release(RegisteredAction action) {
+    inFlight.decrementAndGet();
+    getActionInFlight(action.getActionClass()).decrementAndGet();
+  }
+
+  /**
+   * Counts the current request as sleeping, or throws if it should be shed instead. Every sleep
+   * that is admitted must be followed by a call to {@link #releaseSleep}.
+   */
+  public void admitSleep() {
+    if (sleeping.incrementAndGet() > maxSleeping
+        || inFlight.get() > maxInFlight / 2
+        || isHeapLow()) {
+      sleeping.decrementAndGet();
+      throw new ServiceUnavailableException("Overloaded, try again", RETRY_AFTER_SECONDS);
+    }
+  }
+
+  /** Stops counting a sleep that was admitted by {@link #admitSleep}. */
+  public void releaseSleep() {
+    sleeping.decrementAndGet();
+  }
+
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  int getSleeping() {
+    return sleeping.get();
+  }
+
+  private AtomicInteger getActionInFlight(Class<?> actionClass) {
+    AtomicInteger counter = inFlightByAction.get(actionClass);
+    if (counter == null) {  // Only the first request for each action gets here.
+      AtomicInteger newCounter = new AtomicInteger();
+      counter = inFlightByAction.putIfAbsent(actionClass, newCounter);
+      counter = counter == null ? newCounter : counter;
+    }
+    return counter;
+  }
+
+  /** Whether so much of the heap is in use that we shouldn't take on anything expensive. */
+  boolean isHeapLow() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory() > maxUsedHeapBytes;
+  }
+}
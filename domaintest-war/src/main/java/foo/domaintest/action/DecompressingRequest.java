@@ -0,0 +1,213 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static com.google.common.net.HttpHeaders.CONTENT_ENCODING;
+import static com.google.common.net.HttpHeaders.CONTENT_LENGTH;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
+import foo.domaintest.action.HttpErrorException.BadRequestException;
+import foo.domaintest.action.HttpErrorException.PayloadTooLargeException;
+import foo.domaintest.action.HttpErrorException.UnsupportedMediaTypeException;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A request with a gzip or deflate Content-Encoding, whose body is decompressed as it is read.
+ * <p>
+ * Everything downstream, including the form and multipart parsers, sees only the decompressed
+ * body. Its length isn't known up front, so the Content-Length is hidden, and the limits on how
+ * much of a body an action reads apply to the decompressed bytes.
+ * <p>
+ * Reads fail with a {@link BadRequestException} if the body isn't valid gzip or deflate data,
+ * including if it is cut short, and with a {@link PayloadTooLargeException} if it expands too
+ * much. These can happen while a body is being streamed back, after part of the response has
+ * gone out; {@code RootServlet} then aborts the response rather than finishing it as a 200.
+ */
+public class DecompressingRequest extends HttpServletRequestWrapper {
+
+  /**
+   * The most that a body may expand by. Real gzip traffic rarely gets past 20x, while a zip bomb
+   * gets to 1000x, so this stops bombs long before the body size limits would.
+   */
+  private static final int MAX_RATIO = 100;
+
+  /** Decompressed bytes that are always allowed, so that small, very repetitive bodies are fine. */
+  private static final int RATIO_ALLOWANCE_BYTES = 64 << 10;
+
+  private static final ImmutableSet<String> GZIP_ENCODINGS = ImmutableSet.of("gzip", "x-gzip");
+
+  private final String encoding;
+
+  private ServletInputStream inputStream;
+
+  private BufferedReader reader;
+
+  private DecompressingRequest(HttpServletRequest request, String encoding) {
+    super(request);
+    this.encoding = encoding;
+  }
+
+  /**
+   * Wraps a request so that its body is decompressed, if it has a Content-Encoding.
+   *
+   * @throws UnsupportedMediaTypeException for encodings other than gzip, deflate and identity
+   */
+  public static HttpServletRequest wrap(HttpServletRequest request) {
+    String encoding = request.getHeader(CONTENT_ENCODING);
+    if (encoding == null) {
+      return request;
+    }
+    encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+    if (encoding.isEmpty() || "identity".equals(encoding)) {
+      return request;
+    }
+    if (!GZIP_ENCODINGS.contains(encoding) && !"deflate".equals(encoding)) {
+      throw new UnsupportedMediaTypeException("Unsupported Content-Encoding");
+    }
+    return new DecompressingRequest(request, encoding);
+  }
+
+  @Override
+  public int getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public String getHeader(String name) {
+    return CONTENT_LENGTH.equalsIgnoreCase(name) ? null : super.getHeader(name);
+  }
+
+  @Override
+  public ServletInputStream getInputStream() throws IOException {
+    if (reader != null) {
+      throw new IllegalStateException("getReader() has already been called");
+    }
+    return getDecompressedStream();
+  }
+
+  /**
+   * Returns a reader over the decompressed body. Left to the wrapped request, this would read the
+   * compressed bytes as text.
+   *
+   * @throws java.io.UnsupportedEncodingException if the request's charset isn't supported
+   */
+  @Override
+  public BufferedReader getReader() throws IOException {
+    if (reader == null) {
+      if (inputStream != null) {
+        throw new IllegalStateException("getInputStream() has already been called");
+      }
+      // The servlet spec's default for requests that don't name a charset.
+      String charset = getCharacterEncoding() == null ? "ISO-8859-1" : getCharacterEncoding();
+      reader = new BufferedReader(new InputStreamReader(getDecompressedStream(), charset));
+    }
+    return reader;
+  }
+
+  private ServletInputStream getDecompressedStream() throws IOException {
+    // Create the stream lazily, since GZIPInputStream reads the gzip header when it's created.
+    if (inputStream == null) {
+      CountingInputStream compressed = new CountingInputStream(super.getInputStream());
+      try {
+        inputStream = new RatioLimitedInputStream(
+            GZIP_ENCODINGS.contains(encoding)
+                ? new GZIPInputStream(compressed)
+                : new InflaterInputStream(compressed),
+            compressed);
+      } catch (ZipException | EOFException e) {
+        throw corrupt(e);
+      }
+    }
+    return inputStream;
+  }
+
+  /**
+   * Returns the error for a body that can't be decompressed. The decompressors report this as a
+   * {@link ZipException}, or an {@link EOFException} if the body was cut short. Left as I/O
+   * errors, those would look like the end of the body to callers that stop reading on one.
+   */
+  private static BadRequestException corrupt(IOException e) {
+    return new BadRequestException("Invalid compressed request body", e);
+  }
+
+  /** A decompressed stream that fails once it has expanded too much. */
+  private static class RatioLimitedInputStream extends ServletInputStream {
+
+    private final InputStream decompressed;
+    private final CountingInputStream compressed;
+    private long count;
+
+    RatioLimitedInputStream(InputStream decompressed, CountingInputStream compressed) {
+      this.decompressed = decompressed;
+      this.compressed = compressed;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b;
+      try {
+        b = decompressed.read();
+      } catch (ZipException | EOFException e) {
+        throw corrupt(e);
+      }
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read;
+      try {
+        read = decompressed.read(b, off, len);
+      } catch (ZipException | EOFException e) {
+        throw corrupt(e);
+      }
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      decompressed.close();
+    }
+
+    private void count(int read) {
+      count += read;
+      if (count > compressed.getCount() * MAX_RATIO + RATIO_ALLOWANCE_BYTES) {
+        throw new PayloadTooLargeException("Request body expands too much");
+      }
+    }
+  }
+}
@@ -16,15 +16,44 @@
 
 package foo.domaintest.action;
 
+import foo.domaintest.RootServlet;
 import foo.domaintest.bigquery.BigQueryModule;
 import foo.domaintest.config.ConfigModule;
+import foo.domaintest.config.SystemProperty;
 
 import dagger.Module;
+import dagger.Provides;
+
+import javax.inject.Singleton;
 
 /** Dagger library module for global singleton values. */
 @Module(
     includes = {
         BigQueryModule.class,
         ConfigModule.class },
+    injects = {
+        AdmissionController.class,
+        RateLimiter.class,
+        RootServlet.class },
     library = true)
-public class GlobalModule {}
+public class GlobalModule {
+
+  /** Provides the instance-wide admission controller. */
+  @Provides
+  @Singleton
+  AdmissionController provideAdmissionController(
+      @SystemProperty("maxinflight") int maxInFlight,
+      @SystemProperty("maxinflightperaction") int maxInFlightPerAction,
+      @SystemProperty("maxsleeping") int maxSleeping,
+      @SystemProperty("maxusedheapfraction") double maxUsedHeapFraction) {
+    return new AdmissionController(
+        maxInFlight, maxInFlightPerAction, maxSleeping, maxUsedHeapFraction);
+  }
+
+  /** Provides the instance-wide rate limiter, which can be turned off for load testing. */
+  @Provides
+  @Singleton
+  RateLimiter provideRateLimiter(@SystemProperty("disableratelimits") boolean disableRateLimits) {
+    return disableRateLimits ? RateLimiter.UNLIMITED : new RateLimiter(1 << 14);
+  }
+}
@@ -18,13 +18,18 @@ package foo.domaintest.action;
 
 import javax.servlet.http.HttpServletResponse;
 
-/** Base for exceptions that cause an HTTP error response. */
+/**
+ * Base for exceptions that cause an HTTP error response.
+ * <p>
+ * These are thrown for every bad request, which makes them cheap to provoke in bulk, so they don't
+ * fill in a stack trace. Any cause keeps its own.
+ */
 public abstract class HttpErrorException extends RuntimeException {
 
   private final int responseCode;
 
   private HttpErrorException(int responseCode, String message, Throwable cause) {
-    super(message, cause);
+    super(message, cause, false, false);
     this.responseCode = responseCode;
   }
 
@@ -49,4 +54,49 @@ public abstract class HttpErrorException extends RuntimeException {
       super(HttpServletResponse.SC_NOT_FOUND, message, null);
     }
   }
+
+  /** Exception that causes a 413 response. */
+  public static class PayloadTooLargeException extends HttpErrorException {
+    public PayloadTooLargeException(String message) {
+      super(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message, null);
+    }
+  }
+
+  /** Exception that causes a 415 response. */
+  public static class UnsupportedMediaTypeException extends HttpErrorException {
+    public UnsupportedMediaTypeException(String message) {
+      super(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, message, null);
+    }
+  }
+
+  /** Base for exceptions that also tell the client when to retry, via Retry-After. */
+  public abstract static class RetryLaterException extends HttpErrorException {
+    private final int retryAfterSeconds;
+
+    private RetryLaterException(int responseCode, String message, int retryAfterSeconds) {
+      super(responseCode, message, null);
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+
+  /** Exception that causes a 429 response. */
+  public static class TooManyRequestsException extends RetryLaterException {
+    /** {@link HttpServletResponse} has no constant for this. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    public TooManyRequestsException(String message, int retryAfterSeconds) {
+      super(SC_TOO_MANY_REQUESTS, message, retryAfterSeconds);
+    }
+  }
+
+  /** Exception that causes a 503 response. */
+  public static class ServiceUnavailableException extends RetryLaterException {
+    public ServiceUnavailableException(String message, int retryAfterSeconds) {
+      super(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message, retryAfterSeconds);
+    }
+  }
 }
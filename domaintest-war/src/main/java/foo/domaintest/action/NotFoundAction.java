@@ -21,9 +21,16 @@ import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.HttpErrorException.NotFoundException;
 import foo.domaintest.action.annotation.NoMetrics;
 
+import javax.inject.Inject;
+
 /** An {@link Action} for unregistered paths. */
 @NoMetrics
 public class NotFoundAction implements GetAction, PostAction {
+
+  /** Lets Dagger construct this action even though it has no injected fields. */
+  @Inject
+  NotFoundAction() {}
+
   @Override
   public void run() {
     throw new NotFoundException("Not found");
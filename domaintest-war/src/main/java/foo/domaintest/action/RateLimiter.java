@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import foo.domaintest.action.annotation.RateLimit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped token buckets, for applying {@link RateLimit rate limits} to arbitrary keys.
+ * <p>
+ * Each key is hashed to one of a fixed number of stripes, so memory use is bounded no matter how
+ * many keys there are, at the cost of keys that collide sharing a bucket. A stripe holds a single
+ * long, the time at which its bucket will be full again (the "generic cell rate algorithm" form of
+ * a token bucket), which is updated by compare-and-set, so no locks are taken. Once that time has
+ * passed the bucket is indistinguishable from an empty stripe, so idle keys evict themselves.
+ */
+public class RateLimiter {
+
+  /** A rate limiter that allows everything. */
+  public static final RateLimiter UNLIMITED = new RateLimiter(1) {
+      @Override
+      public int tryAcquire(String key, RateLimit limit) {
+        return 0;
+      }
+
+      @Override
+      public void release(String key, RateLimit limit) {}};
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  /** Base for times, so that all stored times are positive and an empty stripe reads as idle. */
+  private final long originNanos = System.nanoTime();
+
+  private final AtomicLongArray fullAtNanos;
+
+  /** Creates a rate limiter with {@code stripes} buckets, which must be a power of two. */
+  public RateLimiter(int stripes) {
+    checkArgument(Integer.bitCount(stripes) == 1, "Stripes must be a power of two: %s", stripes);
+    this.fullAtNanos = new AtomicLongArray(stripes);
+  }
+
+  /**
+   * Takes a token from the bucket for {@code key}, if it has one.
+   *
+   * @return 0 if a token was taken, or else how many seconds (rounded up) until one will be
+   */
+  public int tryAcquire(String key, RateLimit limit) {
+    long intervalNanos = getIntervalNanos(limit);
+    long capacityNanos = intervalNanos * limit.burst();
+    int stripe = getStripe(key);
+    long now = System.nanoTime() - originNanos;
+    while (true) {
+      long fullAt = fullAtNanos.get(stripe);
+      long newFullAt = Math.max(fullAt, now) + intervalNanos;
+      if (newFullAt - now > capacityNanos) {
+        long waitNanos = newFullAt - now - capacityNanos;
+        return (int) NANOSECONDS.toSeconds(waitNanos + SECONDS.toNanos(1) - 1);
+      }
+      if (fullAtNanos.compareAndSet(stripe, fullAt, newFullAt)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Gives back a token taken by {@link #tryAcquire}, for a request that was refused for some other
+   * reason after all.
+   */
+  public void release(String key, RateLimit limit) {
+    // If the bucket has refilled since, this moves its full time further into the past, which
+    // reads the same as full.
+    fullAtNanos.addAndGet(getStripe(key), -getIntervalNanos(limit));
+  }
+
+  private static long getIntervalNanos(RateLimit limit) {
+    return MINUTES.toNanos(1) / limit.perMinute();
+  }
+
+  private int getStripe(String key) {
+    return HASH_FUNCTION.hashUnencodedChars(key).asInt() & (fullAtNanos.length() - 1);
+  }
+}
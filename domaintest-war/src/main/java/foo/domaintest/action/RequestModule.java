@@ -17,26 +17,36 @@
 package foo.domaintest.action;
 
 import static com.google.common.base.Strings.nullToEmpty;
-import static com.google.common.collect.Iterables.getLast;
+import static com.google.common.net.HttpHeaders.ACCEPT_ENCODING;
+import static com.google.common.net.HttpHeaders.IF_NONE_MATCH;
+import static com.google.common.net.HttpHeaders.IF_RANGE;
+import static com.google.common.net.HttpHeaders.RANGE;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.commons.fileupload.servlet.ServletFileUpload.isMultipartContent;
 
 import com.google.common.base.Optional;
-import com.google.common.io.CharStreams;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.InternetDomainName;
+import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.HttpErrorException.BadRequestException;
+import foo.domaintest.action.HttpErrorException.PayloadTooLargeException;
 import foo.domaintest.action.annotation.RequestData;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.util.ParsedHost;
 
 import dagger.Module;
 import dagger.Provides;
 
 import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
 
+import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -49,16 +59,19 @@ public class RequestModule {
 
   private final HttpServletRequest request;
   private final HttpServletResponse response;
-  private final String actionPath;
+  private final RegisteredAction registeredAction;
+  private final PhaseTimer timer;
   private final long startTimeMillis;
 
   public RequestModule(
       HttpServletRequest request,
       HttpServletResponse response,
-      String actionPath) {
+      RegisteredAction registeredAction,
+      PhaseTimer timer) {
     this.request = request;
     this.response = response;
-    this.actionPath = actionPath;
+    this.registeredAction = registeredAction;
+    this.timer = timer;
     this.startTimeMillis = System.currentTimeMillis();
   }
 
@@ -72,7 +85,18 @@ public class RequestModule {
     return response;
   }
 
+  /** Provides the request's phase timer, which is a no-op unless timing was requested. */
+  @Provides
+  PhaseTimer providePhaseTimer() {
+    return timer;
+  }
+
   /** Provides the request start time in millis since the epoch. */
+  @Provides
+  RequestRateLimiter provideRequestRateLimiter(RateLimiter rateLimiter) {
+    return new RequestRateLimiter(rateLimiter, registeredAction, request.getRemoteAddr());
+  }
+
   @Provides
   @RequestData("startTime")
   long provideStartTime(HttpServletRequest request) {
@@ -89,7 +113,14 @@ public class RequestModule {
   @Provides
   @RequestData("actionPath")
   String provideActionPath() {
-    return actionPath;
+    return registeredAction.getPath();
+  }
+
+  /** Provides the values of the "{name}" path variables in the action's path, keyed by name. */
+  @Provides
+  @RequestData("pathVariables")
+  Map<String, String> providePathVariables(@RequestData("path") String requestPath) {
+    return registeredAction.getPathVariables(requestPath);
   }
 
   /** Provides the request URL up to but not including the query string. */
@@ -121,42 +152,132 @@ public class RequestModule {
     return nullToEmpty(request.getQueryString());
   }
 
+  /** Provides the Accept-Encoding header, or null if there isn't one. */
+  @Provides
+  @RequestData("acceptEncoding")
+  String provideAcceptEncoding(HttpServletRequest request) {
+    return request.getHeader(ACCEPT_ENCODING);
+  }
+
+  /**
+   * Provides the If-None-Match header, or null if there isn't one. It is only provided for GET and
+   * HEAD requests, since a POST can't be answered with a 304.
+   */
+  @Provides
+  @RequestData("ifNoneMatch")
+  String provideIfNoneMatch(HttpServletRequest request) {
+    String method = request.getMethod();
+    return "GET".equals(method) || "HEAD".equals(method) ? request.getHeader(IF_NONE_MATCH) : null;
+  }
+
+  /**
+   * Provides the Range header of a GET request, or null if there isn't one. Only GET requests can
+   * ask for ranges. A Range with an If-Range is dropped, since sending the whole body is always a
+   * correct answer to it.
+   */
+  @Provides
+  @RequestData("range")
+  String provideRange(HttpServletRequest request) {
+    return "GET".equals(request.getMethod()) && request.getHeader(IF_RANGE) == null
+        ? request.getHeader(RANGE)
+        : null;
+  }
+
+  /** Provides the parsed host of the request URL, which is cached across requests. */
+  @Provides
+  ParsedHost provideParsedHost(@RequestData("url") String requestUrl) {
+    return ParsedHost.forUrl(requestUrl);
+  }
+
   /** Provides the full domain name from the request URL, including subdomains. */
   @Provides
   @RequestData("domainName")
-  InternetDomainName provideDomainName(@RequestData("url") String requestUrl) {
-    try {
-      return InternetDomainName.from(new URI(requestUrl).getHost());
-    } catch (URISyntaxException e) {
-      throw new RuntimeException(e);
-    }
+  InternetDomainName provideDomainName(ParsedHost host) {
+    return host.getDomainName();
   }
 
   /** Provides the top level domain name from the request URL. */
   @Provides
   @RequestData("tld")
-  String provideTld(@RequestData("domainName") InternetDomainName domainName) {
-    return getLast(domainName.parts());
+  String provideTld(ParsedHost host) {
+    return host.getTld();
+  }
+
+  /** Provides the largest request body that the action accepts, if it reads it into memory. */
+  @Provides
+  @RequestData("maxBodyBytes")
+  int provideMaxBodyBytes() {
+    return registeredAction.getMaxBodyBytes();
   }
 
-  /** Provides a streaming {@link FileItemIterator} for parsing multipart/form-data requests. */
+  /** Provides the largest request body that the action accepts, if it streams the body. */
+  @Provides
+  @RequestData("maxStreamedBodyBytes")
+  int provideMaxStreamedBodyBytes() {
+    return registeredAction.getMaxStreamedBodyBytes();
+  }
+
+  /**
+   * Provides a streaming {@link FileItemIterator} for parsing multipart/form-data requests.
+   * <p>
+   * Parts that aren't read are skipped without being buffered, so the whole body is capped at the
+   * action's streamed body size. If the body turns out to be bigger while it is being iterated,
+   * reads fail with an {@link IOException} caused by a {@link SizeLimitExceededException}. Callers
+   * that read parts into memory must cap those themselves.
+   *
+   * @throws PayloadTooLargeException if the Content-Length is bigger than the action allows
+   */
   @Provides
   FileItemIterator provideFileItemIterator(HttpServletRequest request) {
+    if (!isMultipartContent(request)) {
+      return null;
+    }
+    ServletFileUpload upload = new ServletFileUpload();
+    upload.setSizeMax(registeredAction.getMaxStreamedBodyBytes());
     try {
-      return isMultipartContent(request) ? new ServletFileUpload().getItemIterator(request) : null;
+      return upload.getItemIterator(request);
+    } catch (SizeLimitExceededException e) {
+      throw new PayloadTooLargeException("Request body too large");
     } catch (FileUploadException | IOException e) {
       return null;
     }
   }
 
-  /** Provides the POST body. Note that this consumes the request's input stream. */
+  /**
+   * Provides the raw bytes of the POST body. Note that this consumes the request's input stream,
+   * so it is only read once per request.
+   *
+   * @throws PayloadTooLargeException as soon as the body turns out to be bigger than the action
+   *     allows, without reading the rest of it
+   * @throws BadRequestException if the body has a Content-Encoding but can't be decompressed,
+   *     rather than treating what was decompressed so far as the whole body
+   */
   @Provides
+  @Singleton
   @RequestData("postBody")
-  String providePostBody(
-      HttpServletRequest request, @RequestData("charset") String requestCharset) {
+  byte[] providePostBodyBytes(HttpServletRequest request) {
+    int maxBodyBytes = registeredAction.getMaxBodyBytes();
     try {
-      return CharStreams.toString(request.getReader());
+      // Read at most one byte more than allowed, which is enough to tell that it's too much.
+      byte[] postBody =
+          ByteStreams.toByteArray(ByteStreams.limit(request.getInputStream(), maxBodyBytes + 1L));
+      if (postBody.length > maxBodyBytes) {
+        throw new PayloadTooLargeException("Request body too large");
+      }
+      return postBody;
     } catch (IOException e) {
+      return new byte[0];
+    }
+  }
+
+  /** Provides the POST body, decoded with the request charset. */
+  @Provides
+  @RequestData("postBody")
+  String providePostBody(
+      @RequestData("postBody") byte[] postBody, @RequestData("charset") String requestCharset) {
+    try {
+      return new String(postBody, requestCharset);
+    } catch (UnsupportedEncodingException e) {
       return "";
     }
   }
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.HttpErrorException.TooManyRequestsException;
+import foo.domaintest.action.annotation.RateLimit;
+
+/**
+ * Applies an action's {@link RateLimit rate limit}, if it has one, to a request.
+ * <p>
+ * The client's IP address is checked before the request is admitted. A token is checked when it
+ * is read, from the same place and decoded the same way as the action reads it, so that it can't
+ * get around its limit by being percent-encoded or sent in the POST body instead. If a token's
+ * limit refuses the request, the token that was taken for the IP address is given back, so that
+ * refused requests only count against the token.
+ */
+public class RequestRateLimiter {
+
+  private final RateLimiter rateLimiter;
+  private final RegisteredAction action;
+  private final String ipKey;
+
+  public RequestRateLimiter(
+      RateLimiter rateLimiter, RegisteredAction action, String remoteAddr) {
+    this.rateLimiter = rateLimiter;
+    this.action = action;
+    this.ipKey = action.getPath() + " ip " + remoteAddr;
+  }
+
+  /**
+   * Takes a token for the client's IP address.
+   *
+   * @return 0 if the request is allowed, or else how many seconds until it would be
+   */
+  public int acquireForIp() {
+    RateLimit limit = action.getRateLimit();
+    return limit == null ? 0 : rateLimiter.tryAcquire(ipKey, limit);
+  }
+
+  /**
+   * Takes a token for a token that the request names, after {@link #acquireForIp}.
+   *
+   * @throws TooManyRequestsException if the request is over the token's limit
+   */
+  public void acquireForToken(String token) {
+    RateLimit limit = action.getRateLimit();
+    if (limit == null) {
+      return;
+    }
+    int retryAfterSeconds = rateLimiter.tryAcquire(action.getPath() + " token " + token, limit);
+    if (retryAfterSeconds > 0) {
+      rateLimiter.release(ipKey, limit);
+      throw new TooManyRequestsException("Rate limit exceeded", retryAfterSeconds);
+    }
+  }
+}
@@ -17,24 +17,51 @@
 package foo.domaintest.action;
 
 import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.net.HttpHeaders.ACCEPT_ENCODING;
+import static com.google.common.net.HttpHeaders.ACCEPT_RANGES;
 import static com.google.common.net.HttpHeaders.CONNECTION;
+import static com.google.common.net.HttpHeaders.CONTENT_ENCODING;
+import static com.google.common.net.HttpHeaders.CONTENT_RANGE;
+import static com.google.common.net.HttpHeaders.ETAG;
 import static com.google.common.net.HttpHeaders.LOCATION;
+import static com.google.common.net.HttpHeaders.VARY;
 import static com.google.common.net.MediaType.PLAIN_TEXT_UTF_8;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.base.Ascii;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
+import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 import foo.domaintest.util.Sleeper;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.servlet.http.Cookie;
@@ -43,13 +70,41 @@ import javax.servlet.http.HttpServletResponse;
 /** A configurable HTTP response. */
 public class Response {
 
+  /** Not in {@link com.google.common.net.HttpHeaders} until a later Guava version. */
+  private static final String SERVER_TIMING = "Server-Timing";
+
   private static final int MIN_STATUS_CODE = 200;
   private static final int MAX_STATUS_CODE = 499;
   private static final int MAX_SLEEP_SECONDS = 10;
+  /** The charset the servlet spec uses when the content type doesn't specify one. */
+  private static final String DEFAULT_CHARSET = "ISO-8859-1";
+  /** Bodies smaller than this aren't worth the gzip header and the CPU, so they are sent as is. */
+  private static final int MIN_GZIP_BYTES = 1024;
+  private static final String GZIP = "gzip";
+  /** More ranges than this in one request are ignored, and the whole body is sent instead. */
+  private static final int MAX_RANGES = 16;
+  private static final Pattern BYTE_RANGE = Pattern.compile("(\\d*)-(\\d*)");
+
+  /** Splits header values that are comma separated lists, like Accept-Encoding. */
+  private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter ACCEPT_ENCODING_PARAM_SPLITTER = Splitter.on(';').trimResults();
+  /** A q value of 0, which turns a coding off. */
+  private static final Pattern ZERO_QUALITY = Pattern.compile("(?i)q=0(\\.0{0,3})?");
+
+  /** A buffer per thread for streaming payloads, so that copying doesn't allocate. */
+  private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[8192];
+      }};
 
   private final Sleeper sleeper;
   private final HttpServletResponse servletResponse;
+  private final boolean acceptsGzip;
+  private final String ifNoneMatch;
+  private final String range;
   private final Metrics metrics;
+  private final PhaseTimer timer;
 
   private Integer status;
   private Integer sleepSeconds;
@@ -58,12 +113,29 @@ public class Response {
   private Map<String, String> cookiesToAdd;
   private Map<String, String> headers;
   private String payload;
+  private byte[] payloadBytes;
+  private byte[] gzippedPayloadBytes;
+  private InputStream payloadStream;
+  private String etag;
+  private boolean conditional;
+  private boolean servedFinalByte = true;
 
   @Inject
-  public Response(Sleeper sleeper, HttpServletResponse servletResponse, Metrics metrics) {
+  public Response(
+      Sleeper sleeper,
+      HttpServletResponse servletResponse,
+      @RequestData("acceptEncoding") String acceptEncoding,
+      @RequestData("ifNoneMatch") String ifNoneMatch,
+      @RequestData("range") String range,
+      Metrics metrics,
+      PhaseTimer timer) {
     this.sleeper = sleeper;
     this.servletResponse = servletResponse;
+    this.acceptsGzip = acceptsGzip(acceptEncoding);
+    this.ifNoneMatch = ifNoneMatch;
+    this.range = range;
     this.metrics = metrics;
+    this.timer = timer;
   }
 
   public Response setStatus(Integer status) {
@@ -109,11 +181,80 @@ public class Response {
     return this;
   }
 
-  private void setCookie(String name, String value, int maxAge) {
+  /**
+   * Sets bytes to write as the response body exactly as they are, instead of a payload. The bytes
+   * can't be used as a redirect location.
+   */
+  public Response setPayloadBytes(byte[] payloadBytes) {
+    this.payloadBytes = payloadBytes;
+    return this;
+  }
+
+  /**
+   * Sets bytes to write as the response body, along with a copy of them that was already gzipped
+   * with {@link #gzip}. This lets constant bodies be compressed once instead of on every request.
+   * The gzipped copy is only sent to clients that accept it.
+   */
+  public Response setPayloadBytes(byte[] payloadBytes, byte[] gzippedPayloadBytes) {
+    this.payloadBytes = payloadBytes;
+    this.gzippedPayloadBytes = gzippedPayloadBytes;
+    return this;
+  }
+
+  /**
+   * Sets a stream to copy to the response body byte for byte, instead of a payload. The stream
+   * can't be used as a redirect location.
+   */
+  public Response setPayloadStream(InputStream payloadStream) {
+    this.payloadStream = payloadStream;
+    return this;
+  }
+
+  /**
+   * Sets the ETag of the body, including its quotes. If the body is gzipped on the way out, it is
+   * sent with "-gzip" added to the tag, since it is then a different representation.
+   */
+  public Response setEtag(String etag) {
+    this.etag = etag;
+    return this;
+  }
+
+  /**
+   * Marks the response as depending only on the request, so that it gets an ETag computed from
+   * its contents if it doesn't have one. Clients can then revalidate it with If-None-Match and get
+   * a 304 instead of the body. This is skipped for responses with cookies or a sleep, since a 304
+   * would skip those too, and for streamed payloads, which can't be hashed up front.
+   */
+  public Response setConditional(boolean conditional) {
+    this.conditional = conditional;
+    return this;
+  }
+
+  /**
+   * Returns whether the last {@link #send} served the final byte of the body. That is only false
+   * if it answered a Range request with ranges that stop short of the end, or with a 416.
+   */
+  public boolean servedFinalByte() {
+    return servedFinalByte;
+  }
+
+  /** The body of a response to a Range request, and the parts of it to send. */
+  private static class RangedBody {
+    final byte[] bytes;
+    /** The satisfiable ranges in the order they were asked for, or none for a 416. */
+    final List<Range<Integer>> ranges;
+
+    RangedBody(byte[] bytes, List<Range<Integer>> ranges) {
+      this.bytes = bytes;
+      this.ranges = ranges;
+    }
+  }
+
+  private static Cookie newCookie(String name, String value, int maxAge) {
     try {
       Cookie cookie = new Cookie(name, value);
       cookie.setMaxAge(maxAge);
-      servletResponse.addCookie(cookie);
+      return cookie;
     } catch (IllegalArgumentException e) {
       throw new BadRequestException("Illegal cookie", e);
     }
@@ -121,43 +262,432 @@ public class Response {
 
   public void send() {
     setDefaults();
-    sleeper.sleep(sleepSeconds);
-    servletResponse.setStatus(status);
+    // Validate everything that can fail before sleeping, so that a bad request doesn't hold a
+    // request thread for the full sleep only to return an error.
+    final List<Cookie> cookies = new ArrayList<>();
     for (String cookieToDelete : cookiesToDelete) {
-      setCookie(cookieToDelete, "", 0);
-      metrics.addActivity("delete_cookie");
+      cookies.add(newCookie(cookieToDelete, "", 0));
     }
     for (Entry<String, String> cookieToAdd : cookiesToAdd.entrySet()) {
       // A maxAge of -1 means session lifetime (goes away when the browser closes).
-      setCookie(cookieToAdd.getKey(), cookieToAdd.getValue(), -1);
-      metrics.addActivity("add_cookie");
-    }
-    for (Entry<String, String> header : headers.entrySet()) {
-      // Not sure what use header splitting would be since we let you set headers explicitly, but
-      // prevent it just in case.
-      servletResponse.addHeader(header.getKey(), header.getValue().replaceAll("\n", " "));
-      metrics.addActivity("set_header");
+      cookies.add(newCookie(cookieToAdd.getKey(), cookieToAdd.getValue(), -1));
     }
+    String location = null;
     if (status >= 300 && status < 400) {
-      // Handle a redirect, if requested.
       // The location should be in the payload field. If it's empty, redirect to the landing page.
       try {
-        servletResponse.setHeader(LOCATION, payload.isEmpty()
-            ? "/"
-            : new URL(payload).toString());
+        location = payload.isEmpty() ? "/" : new URL(payload).toString();
       } catch (MalformedURLException e) {
         throw new BadRequestException("Invalid redirect url", e);
       }
+    }
+    String notModifiedEtag = null;
+    if (location == null && status < 300 && cookies.isEmpty() && sleepSeconds == 0
+        && payloadStream == null) {
+      if (etag == null && conditional && !hasHeader(ETAG)) {
+        etag = computeEtag();
+      }
+      notModifiedEtag = findMatchingEtag(ifNoneMatch, etag);
+    }
+    RangedBody rangedBody = null;
+    if (range != null && location == null && status == HttpServletResponse.SC_OK
+        && notModifiedEtag == null && payloadStream == null) {
+      byte[] bytes = getPayloadBytes();
+      List<Range<Integer>> ranges = parseRanges(range, bytes.length);
+      if (ranges != null) {
+        rangedBody = new RangedBody(bytes, ranges);
+      }
+    }
+    servedFinalByte = rangedBody == null
+        || (!rangedBody.ranges.isEmpty() && servesLastByte(rangedBody));
+    // Record metrics up front, since the write below may be deferred until after the request
+    // thread has exported them.
+    for (Cookie cookie : cookies) {
+      metrics.addActivity(cookie.getMaxAge() == 0 ? "delete_cookie" : "add_cookie");
+    }
+    if (!headers.isEmpty()) {
+      metrics.addActivity("set_header");
+    }
+    if (notModifiedEtag != null) {
+      metrics.addActivity("not_modified");
+    }
+    if (rangedBody != null) {
+      metrics.addActivity("range");
+    }
+    metrics.setResponseCode(getSentStatus(notModifiedEtag, rangedBody));
+    final String finalLocation = location;
+    final String finalNotModifiedEtag = notModifiedEtag;
+    final RangedBody finalRangedBody = rangedBody;
+    sleeper.sleepThen(sleepSeconds, new Runnable() {
+        @Override
+        public void run() {
+          write(cookies, finalLocation, finalNotModifiedEtag, finalRangedBody);
+        }});
+  }
+
+  /** Returns the status that is actually sent, which a 304 or a Range request can change. */
+  private int getSentStatus(String notModifiedEtag, RangedBody rangedBody) {
+    if (notModifiedEtag != null) {
+      return HttpServletResponse.SC_NOT_MODIFIED;
+    } else if (rangedBody != null) {
+      return rangedBody.ranges.isEmpty()
+          ? HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+          : HttpServletResponse.SC_PARTIAL_CONTENT;
+    }
+    return status;
+  }
+
+  /**
+   * Writes the response, redirecting to {@code location} if it is not null, answering with a
+   * bodiless 304 if {@code notModifiedEtag} is not null, or sending parts of the body if
+   * {@code rangedBody} is not null.
+   */
+  private void write(
+      List<Cookie> cookies, String location, String notModifiedEtag, RangedBody rangedBody) {
+    servletResponse.setStatus(getSentStatus(notModifiedEtag, rangedBody));
+    if (timer.isEnabled()) {
+      // This has to be set before the body, so it can't include the time spent writing it.
+      servletResponse.setHeader(SERVER_TIMING, timer.toServerTiming());
+    }
+    for (Cookie cookie : cookies) {
+      servletResponse.addCookie(cookie);
+    }
+    for (Entry<String, String> header : headers.entrySet()) {
+      // Not sure what use header splitting would be since we let you set headers explicitly, but
+      // prevent it just in case.
+      servletResponse.addHeader(header.getKey(), header.getValue().replaceAll("\n", " "));
+    }
+    if (location != null) {
+      servletResponse.setHeader(LOCATION, location);
       servletResponse.setHeader(CONNECTION, "close");
+    } else if (notModifiedEtag != null) {
+      servletResponse.setHeader(ETAG, notModifiedEtag);
     } else {
       servletResponse.setContentType(mimeType);
+      if (etag != null) {
+        servletResponse.setHeader(ETAG, etag);
+      }
+      if (status == HttpServletResponse.SC_OK && payloadStream == null) {
+        servletResponse.setHeader(ACCEPT_RANGES, "bytes");
+      }
       try {
-        servletResponse.getWriter().write(payload);
+        long start = timer.start();
+        if (rangedBody != null) {
+          writeRanges(rangedBody);
+        } else if (payloadStream != null) {
+          writeStream(payloadStream);
+        } else if (payloadBytes != null) {
+          writeBytes(payloadBytes, gzippedPayloadBytes);
+        } else {
+          writePayload();
+        }
+        timer.stop(Phase.WRITE, start);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
-    metrics.setResponseCode(status);
+  }
+
+  /** Returns the bytes of the body, which must not be a stream. */
+  private byte[] getPayloadBytes() {
+    if (payloadBytes != null) {
+      return payloadBytes;
+    }
+    // The charset comes from the content type, so set it now rather than waiting for the write.
+    servletResponse.setContentType(mimeType);
+    try {
+      return payload.getBytes(
+          Optional.fromNullable(servletResponse.getCharacterEncoding()).or(DEFAULT_CHARSET));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the requested ranges of the body, as is, since ranges of a gzipped body would be ranges
+   * of a different representation. One range is sent with a Content-Range header, and several are
+   * sent as multipart/byteranges. If none of them can be satisfied, the body is empty.
+   */
+  private void writeRanges(RangedBody rangedBody) throws IOException {
+    byte[] bytes = rangedBody.bytes;
+    List<Range<Integer>> ranges = rangedBody.ranges;
+    if (ranges.isEmpty()) {
+      servletResponse.setHeader(CONTENT_RANGE, "bytes */" + bytes.length);
+      servletResponse.setContentLength(0);
+    } else if (ranges.size() == 1) {
+      Range<Integer> range = ranges.get(0);
+      int length = range.upperEndpoint() - range.lowerEndpoint() + 1;
+      servletResponse.setHeader(CONTENT_RANGE, contentRange(range, bytes.length));
+      servletResponse.setContentLength(length);
+      servletResponse.getOutputStream().write(bytes, range.lowerEndpoint(), length);
+    } else {
+      // The body is built in memory so that it can have an exact Content-Length.
+      String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      for (Range<Integer> range : ranges) {
+        body.write(String.format(
+            "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+            boundary, mimeType, contentRange(range, bytes.length)).getBytes(US_ASCII));
+        body.write(
+            bytes, range.lowerEndpoint(), range.upperEndpoint() - range.lowerEndpoint() + 1);
+      }
+      body.write(String.format("\r\n--%s--\r\n", boundary).getBytes(US_ASCII));
+      servletResponse.setContentType("multipart/byteranges; boundary=" + boundary);
+      servletResponse.setContentLength(body.size());
+      body.writeTo(servletResponse.getOutputStream());
+    }
+  }
+
+  private static String contentRange(Range<Integer> range, int length) {
+    return "bytes " + range.lowerEndpoint() + "-" + range.upperEndpoint() + "/" + length;
+  }
+
+  private static boolean servesLastByte(RangedBody rangedBody) {
+    for (Range<Integer> range : rangedBody.ranges) {
+      if (range.upperEndpoint() == rangedBody.bytes.length - 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a Range header against a body of {@code length} bytes, returning the satisfiable ranges
+   * as closed ranges of byte offsets, or an empty list if there are none. Returns null if the
+   * header should be ignored and the whole body sent, which is the case if it isn't a valid bytes
+   * range or asks for too many ranges.
+   */
+  static List<Range<Integer>> parseRanges(String header, int length) {
+    if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    List<Range<Integer>> ranges = new ArrayList<>();
+    int count = 0;
+    for (String spec : LIST_SPLITTER.split(header.substring(6))) {
+      Matcher matcher = BYTE_RANGE.matcher(spec);
+      if (++count > MAX_RANGES || !matcher.matches()) {
+        return null;
+      }
+      String first = matcher.group(1);
+      String last = matcher.group(2);
+      if (first.isEmpty()) {
+        // A suffix range, for the last n bytes.
+        if (last.isEmpty()) {
+          return null;
+        }
+        long suffixLength = parseOffset(last);
+        if (suffixLength > 0 && length > 0) {
+          ranges.add(Range.closed((int) Math.max(0, length - suffixLength), length - 1));
+        }
+        continue;
+      }
+      long start = parseOffset(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : parseOffset(last);
+      if (end < start) {
+        return null;
+      }
+      if (start < length) {
+        ranges.add(Range.closed((int) start, (int) Math.min(end, length - 1)));
+      }
+    }
+    return count == 0 ? null : ranges;
+  }
+
+  /** Parses a byte offset, saturating at {@link Long#MAX_VALUE} since bodies are much smaller. */
+  private static long parseOffset(String digits) {
+    try {
+      return Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /** Writes the string payload, gzipped if that is allowed and the payload is big enough. */
+  private void writePayload() throws IOException {
+    byte[] bytes = payload.getBytes(
+        Optional.fromNullable(servletResponse.getCharacterEncoding()).or(DEFAULT_CHARSET));
+    if (bytes.length >= MIN_GZIP_BYTES && mayCompress()) {
+      if (acceptsGzip) {
+        writeBytes(bytes, null);
+        return;
+      }
+      servletResponse.addHeader(VARY, ACCEPT_ENCODING);
+    }
+    // Set the length explicitly so that HEAD requests, which don't write the body, get it too.
+    servletResponse.setContentLength(bytes.length);
+    servletResponse.getWriter().write(payload);
+  }
+
+  /**
+   * Writes bytes with an exact Content-Length, gzipped if that is allowed and makes them smaller.
+   * The gzipped copy is made here unless the caller passed one in.
+   */
+  private void writeBytes(byte[] bytes, byte[] gzipped) throws IOException {
+    byte[] body = bytes;
+    if ((gzipped != null || bytes.length >= MIN_GZIP_BYTES) && mayCompress()) {
+      servletResponse.addHeader(VARY, ACCEPT_ENCODING);
+      if (acceptsGzip) {
+        byte[] compressed = gzipped == null ? gzip(bytes) : gzipped;
+        if (compressed.length < bytes.length) {
+          setGzipHeaders();
+          body = compressed;
+        }
+      }
+    }
+    servletResponse.setContentLength(body.length);
+    servletResponse.getOutputStream().write(body);
+  }
+
+  /**
+   * Copies a stream of unknown length to the body. The start of the stream is read first, so that
+   * a short stream can be sent as is with a Content-Length and a long one can be gzipped as it
+   * is copied.
+   */
+  private void writeStream(InputStream in) throws IOException {
+    byte[] buffer = COPY_BUFFER.get();
+    int count = ByteStreams.read(in, buffer, 0, MIN_GZIP_BYTES);
+    boolean gzip = false;
+    if (count < MIN_GZIP_BYTES) {
+      servletResponse.setContentLength(count);
+    } else if (mayCompress()) {
+      servletResponse.addHeader(VARY, ACCEPT_ENCODING);
+      gzip = acceptsGzip;
+    }
+    if (!gzip) {
+      OutputStream out = servletResponse.getOutputStream();
+      out.write(buffer, 0, count);
+      copy(in, out);
+      return;
+    }
+    setGzipHeaders();
+    // Closing the gzip stream releases its native deflater. It also closes the servlet stream,
+    // which is fine since this is the last thing written.
+    try (OutputStream out = new GZIPOutputStream(servletResponse.getOutputStream(), 8192)) {
+      out.write(buffer, 0, count);
+      copy(in, out);
+    }
+  }
+
+  /** Marks the body as gzipped, replacing the ETag with the one for the gzipped representation. */
+  private void setGzipHeaders() {
+    servletResponse.setHeader(CONTENT_ENCODING, GZIP);
+    if (etag != null) {
+      servletResponse.setHeader(ETAG, gzipEtag(etag));
+    }
+  }
+
+  /** Returns the ETag of the gzipped copy of a body with the given ETag. */
+  private static String gzipEtag(String etag) {
+    return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + "-gzip\"" : etag;
+  }
+
+  /**
+   * Returns a strong ETag for the body and the headers that go with it. It is a hash, so it is
+   * cheap next to sending the body, and it's the same for every request that gets the same
+   * response.
+   */
+  private String computeEtag() {
+    Hasher hasher = Hashing.murmur3_128().newHasher()
+        .putInt(status)
+        .putString(mimeType, UTF_8)
+        .putInt(headers.size());
+    for (Entry<String, String> header : headers.entrySet()) {
+      hasher.putInt(header.getKey().length()).putString(header.getKey(), UTF_8)
+          .putInt(header.getValue().length()).putString(header.getValue(), UTF_8);
+    }
+    if (payloadBytes != null) {
+      hasher.putBoolean(true).putBytes(payloadBytes);
+    } else {
+      hasher.putBoolean(false).putString(payload, UTF_8);
+    }
+    return "\"" + hasher.hash() + "\"";
+  }
+
+  /**
+   * Returns the ETag to send with a 304 if an If-None-Match header matches {@code etag} or the ETag
+   * of its gzipped copy, or null if it doesn't. Matching is weak, as If-None-Match requires, so
+   * a "W/" prefix is ignored.
+   */
+  static String findMatchingEtag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null || etag == null) {
+      return null;
+    }
+    for (String tag : LIST_SPLITTER.split(ifNoneMatch)) {
+      if (tag.equals("*")) {
+        return etag;
+      }
+      tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+      if (tag.equals(etag) || tag.equals(gzipEtag(etag))) {
+        return tag;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the body may be compressed, which it may not if the caller set their own
+   * Content-Encoding header, since that would describe some other encoding than ours.
+   */
+  private boolean mayCompress() {
+    return !hasHeader(CONTENT_ENCODING);
+  }
+
+  /** Returns whether the caller set a header with this name, in any case. */
+  private boolean hasHeader(String name) {
+    for (String header : headers.keySet()) {
+      if (name.equalsIgnoreCase(header)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Gzips {@code bytes}, for bodies that are compressed once and sent many times. */
+  public static byte[] gzip(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    } catch (IOException e) {
+      throw new RuntimeException(e);  // Can't happen writing to memory.
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns whether an Accept-Encoding header value allows gzip, either by name or through "*",
+   * and doesn't turn it off with a q value of 0.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    Boolean gzip = null;
+    Boolean wildcard = null;
+    for (String coding : LIST_SPLITTER.split(acceptEncoding)) {
+      Iterator<String> parts = ACCEPT_ENCODING_PARAM_SPLITTER.split(coding).iterator();
+      String name = Ascii.toLowerCase(parts.next());
+      boolean accepted = true;
+      while (parts.hasNext()) {
+        String param = parts.next().replace(" ", "");
+        if (ZERO_QUALITY.matcher(param).matches()) {
+          accepted = false;
+        }
+      }
+      if (GZIP.equals(name) || "x-gzip".equals(name)) {
+        gzip = accepted;
+      } else if ("*".equals(name)) {
+        wildcard = accepted;
+      }
+    }
+    return gzip != null ? gzip : Boolean.TRUE.equals(wildcard);
+  }
+
+  /** Copies {@code in} to {@code out} through this thread's copy buffer. */
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = COPY_BUFFER.get();
+    for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+      out.write(buffer, 0, count);
+    }
   }
 
   protected void setDefaults() {
@@ -173,16 +703,27 @@ public class Response {
   @Override
   public boolean equals(Object other) {
     return other instanceof Response
-        && Arrays.equals(getFieldsArray(), ((Response) other).getFieldsArray());
+        && Arrays.deepEquals(getFieldsArray(), ((Response) other).getFieldsArray());
   }
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(getFieldsArray());
+    return Arrays.deepHashCode(getFieldsArray());
   }
 
   private Object[] getFieldsArray() {
     return new Object[] {
-        status, sleepSeconds, mimeType, cookiesToDelete, cookiesToAdd, headers, payload };
+        status,
+        sleepSeconds,
+        mimeType,
+        cookiesToDelete,
+        cookiesToAdd,
+        headers,
+        payload,
+        payloadBytes,
+        gzippedPayloadBytes,
+        payloadStream,
+        etag,
+        conditional };
   }
 }
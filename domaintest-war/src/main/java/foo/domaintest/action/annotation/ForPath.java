@@ -26,6 +26,10 @@ import java.lang.annotation.Target;
 @Target(TYPE)
 @Retention(RUNTIME)
 public @interface ForPath {
-  /** Path string. May end with "/*" to imply that its matches any subpaths. */
+  /**
+   * Path string. May end with "/*" to imply that it matches any subpaths. A segment of "*" matches
+   * any single non-empty segment, and a segment of "{name}" does too, and also makes the matched
+   * value available as a path variable.
+   */
   String value();
 }
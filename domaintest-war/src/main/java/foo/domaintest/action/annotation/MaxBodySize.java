@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action.annotation;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that overrides the largest request body, in bytes, that an action accepts. Requests
+ * with larger bodies are answered with a 413 without reading past the limit.
+ */
+@Target(TYPE)
+@Retention(RUNTIME)
+public @interface MaxBodySize {
+  /** Limit for bodies that are read into memory. */
+  int value();
+
+  /**
+   * Limit for bodies that the action streams instead of reading into memory, if it does that.
+   * This is enforced against the Content-Length, while iterating over multipart bodies, and by
+   * the action itself.
+   */
+  int streamed() default 0;
+}
@@ -16,6 +16,8 @@
 
 package foo.domaintest.config;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
@@ -71,6 +73,58 @@ public class ConfigModule {
     return table.build();
   }
 
+  /**
+   * Provides how long browsers may cache a CORS preflight response. Browsers cap this at their own
+   * maximum (e.g. 2 hours for Chrome), so the default just asks for as long as any of them allows.
+   */
+  @Provides
+  @Singleton
+  @SystemProperty("corsmaxage")
+  int provideCorsMaxAgeSeconds() {
+    return Integer.getInteger("foo.domaintest.corsmaxage", (int) DAYS.toSeconds(1));
+  }
+
+  /** Provides the most requests an instance will run at once before shedding more. */
+  @Provides
+  @Singleton
+  @SystemProperty("maxinflight")
+  int provideMaxInFlight() {
+    return Integer.getInteger("foo.domaintest.maxinflight", 64);
+  }
+
+  /** Provides the most requests an instance will run at once for any one action. */
+  @Provides
+  @Singleton
+  @SystemProperty("maxinflightperaction")
+  int provideMaxInFlightPerAction() {
+    return Integer.getInteger("foo.domaintest.maxinflightperaction", 48);
+  }
+
+  /** Provides the most requests an instance will let sleep at once. */
+  @Provides
+  @Singleton
+  @SystemProperty("maxsleeping")
+  int provideMaxSleeping() {
+    return Integer.getInteger("foo.domaintest.maxsleeping", 16);
+  }
+
+  /** Provides the fraction of the heap in use past which sleeps and POSTs are shed. */
+  @Provides
+  @Singleton
+  @SystemProperty("maxusedheapfraction")
+  double provideMaxUsedHeapFraction() {
+    return Double.parseDouble(Optional.fromNullable(
+        System.getProperty("foo.domaintest.maxusedheapfraction")).or("0.85"));
+  }
+
+  /** Provides whether to turn rate limiting off, for load testing. */
+  @Provides
+  @Singleton
+  @SystemProperty("disableratelimits")
+  boolean provideDisableRateLimits() {
+    return Boolean.getBoolean("foo.domaintest.disableratelimits");
+  }
+
   @Provides
   @Singleton
   @SystemProperty("sendgriduser")
@@ -34,6 +34,7 @@ import com.google.common.collect.Iterables;
 import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.MaxBodySize;
 import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.config.SystemProperty;
 import foo.domaintest.email.EmailApiModule.EmailHeader;
@@ -48,8 +49,14 @@ import java.util.logging.Logger;
 
 import javax.inject.Inject;
 
-/** Action that receives email from sendgrid and sends autoreplies. */
+/**
+ * Action that receives email from sendgrid and sends autoreplies.
+ * <p>
+ * SendGrid posts whole emails, attachments and all, but only the headers part is read into memory,
+ * so the body may be as big as App Engine allows.
+ */
 @ForPath("/autoreply")
+@MaxBodySize(value = 1 << 20, streamed = 32 << 20)
 public class AutoreplyAction implements PostAction {
 
   private static final Logger logger = Logger.getLogger(AutoreplyAction.class.getName());
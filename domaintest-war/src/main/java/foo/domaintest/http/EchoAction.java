@@ -18,13 +18,24 @@ package foo.domaintest.http;
 
 import foo.domaintest.action.Response;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.MaxBodySize;
+import foo.domaintest.action.annotation.RateLimit;
+import foo.domaintest.http.HttpApiModule.Param;
+
+import dagger.Lazy;
+
+import java.io.InputStream;
 
 import javax.inject.Inject;
 
 /** Action for /echo endpoint. */
 @ForPath("/echo")
+@MaxBodySize(value = 1 << 20, streamed = 32 << 20)
+@RateLimit(perMinute = 600, burst = 60)
 public class EchoAction extends EchoOrStashAction {
 
+  @Inject @Param("payload") Lazy<String> payload;
+  @Inject @Param("postpayload") InputStream postPayloadStream;
   @Inject Response response;
 
   /** Echo requests back immediately. */
@@ -37,7 +48,14 @@ public class EchoAction extends EchoOrStashAction {
         .setCookiesToDelete(cookiesToDelete)
         .setCookiesToAdd(cookiesToAdd)
         .setHeaders(headers)
-        .setPayload(payload)
-        .send();
+        // An echo depends only on the request, so monitors polling the same URL can revalidate.
+        .setConditional(true);
+    // Stream a POST body straight back, unless it's needed as a redirect location.
+    if (postPayloadStream != null && (status == null || status < 300 || status >= 400)) {
+      response.setPayloadStream(postPayloadStream);
+    } else {
+      response.setPayload(payload.get());
+    }
+    response.send();
   }
 }
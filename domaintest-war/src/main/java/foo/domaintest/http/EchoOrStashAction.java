@@ -33,5 +33,4 @@ public abstract class EchoOrStashAction implements GetAction, PostAction {
   @Inject @Param("delcookie") List<String> cookiesToDelete;
   @Inject @Param("addcookie") Map<String, String> cookiesToAdd;
   @Inject @Param("header") Map<String, String> headers;
-  @Inject @Param("payload") String payload;
 }
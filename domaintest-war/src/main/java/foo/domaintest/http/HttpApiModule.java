@@ -17,24 +17,26 @@
 package foo.domaintest.http;
 
 import static com.google.common.base.Strings.nullToEmpty;
-import static com.google.common.collect.Iterables.getFirst;
 import static foo.domaintest.util.QueryStringHelper.parseQuery;
 import static java.util.UUID.randomUUID;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
-import com.google.common.io.CharStreams;
+import com.google.common.io.ByteStreams;
 import foo.domaintest.action.Action;
+import foo.domaintest.action.HttpErrorException.PayloadTooLargeException;
 import foo.domaintest.action.RequestModule;
+import foo.domaintest.action.RequestRateLimiter;
 import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.config.ConfigModule.EasterEggs;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 import foo.domaintest.metrics.impl.MetricsModule;
 
 import dagger.Lazy;
@@ -43,12 +45,15 @@ import dagger.Provides;
 
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
 import org.apache.commons.fileupload.FileUploadException;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Documented;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +62,7 @@ import java.util.Set;
 
 import javax.inject.Qualifier;
 import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /** Dagger module for creating the HTTP API actions. */
@@ -82,6 +88,18 @@ public class HttpApiModule {
     String value();
   }
 
+  /** The most parts that are read from a multipart/form-data body. */
+  private static final int MAX_MULTIPART_PARTS = 64;
+
+  /** The biggest multipart/form-data form field, which is text that ends up in a param. */
+  private static final int MAX_MULTIPART_FIELD_BYTES = 64 << 10;
+
+  /**
+   * The biggest multipart/form-data file part. This is a quarter of the biggest body that any
+   * action reads into memory, so that one upload can't use up the whole body on its own.
+   */
+  private static final int MAX_MULTIPART_FILE_BYTES = 256 << 10;
+
   public static final Set<Class<? extends Action>> ACTIONS =
       ImmutableSet.<Class<? extends Action>>of(
           EchoAction.class,
@@ -89,53 +107,124 @@ public class HttpApiModule {
           TempAction.class,
           TokenAction.class);
 
+  /**
+   * Provides the request params. Nothing is parsed until a param is asked for, and the POST body
+   * is only read for POST requests.
+   */
   @Provides
   @Singleton
-  Multimap<String, String> provideParameterMap(
+  RequestParameters provideRequestParameters(
       @RequestData("queryString") String queryString,
-      @RequestData("postBody") Lazy<String> lazyPostBody,
-      @RequestData("charset") String requestCharset,
-      FileItemIterator multipartIterator) {
-    // Calling request.getParameter() or request.getParameterMap() etc. consumes the POST body. If
-    // we got the "postpayload" param we don't want to parse the body, so use only the query params.
-    // Note that specifying both "payload" and "postpayload" will result in the "payload" param
-    // being honored and the POST body being completely ignored.
-    ImmutableMultimap.Builder<String, String> params = new ImmutableMultimap.Builder<>();
-    Multimap<String, String> getParams = parseQuery(queryString);
-    params.putAll(getParams);
-    if (getParams.containsKey("postpayload")) {
-      // Treat the POST body as if it was the "payload" param.
-      return params.put("payload", nullToEmpty(lazyPostBody.get())).build();
-    }
-    // No "postpayload" so it's safe to consume the POST body and look for params there.
-    if (multipartIterator == null) {  // Handle GETs and form-urlencoded POST requests.
-      params.putAll(parseQuery(nullToEmpty(lazyPostBody.get())));
-    } else {  // Handle multipart/form-data requests.
+      @RequestData("method") String method,
+      final @RequestData("postBody") Lazy<String> lazyPostBody,
+      final @RequestData("charset") String requestCharset,
+      final @RequestData("maxBodyBytes") int maxBodyBytes,
+      final Lazy<FileItemIterator> lazyMultipartIterator,
+      final PhaseTimer timer) {
+    if (!"POST".equals(method)) {
+      return new RequestParameters(queryString, null, timer);
+    }
+    Lazy<RequestParameters.Body> lazyBody = new Lazy<RequestParameters.Body>() {
+        @Override
+        public RequestParameters.Body get() {
+          return parseBody(
+              lazyPostBody, requestCharset, maxBodyBytes, lazyMultipartIterator, timer);
+        }};
+    return new RequestParameters(queryString, lazyBody, timer);
+  }
+
+  /**
+   * Parses the params in a form-urlencoded or multipart/form-data POST body.
+   *
+   * @throws PayloadTooLargeException if a multipart body has too many parts, if any part is bigger
+   *     than parts of its kind may be, or if its parts add up to more than the action reads into
+   *     memory
+   */
+  private static RequestParameters.Body parseBody(
+      Lazy<String> lazyPostBody,
+      String requestCharset,
+      int maxBodyBytes,
+      Lazy<FileItemIterator> lazyMultipartIterator,
+      PhaseTimer timer) {
+    FileItemIterator multipartIterator = lazyMultipartIterator.get();
+    if (multipartIterator == null) {  // Handle form-urlencoded POST requests.
+      String postBody = nullToEmpty(lazyPostBody.get());
+      long start = timer.start();
       try {
-        while (multipartIterator != null && multipartIterator.hasNext()) {
-          FileItemStream item = multipartIterator.next();
-          try (InputStream stream = item.openStream()) {
-            params.put(
-                item.isFormField() ? item.getFieldName() : item.getName(),
-                CharStreams.toString(new InputStreamReader(stream, requestCharset)));
-          }
+        return new RequestParameters.Body(parseQuery(postBody));
+      } finally {
+        timer.stop(Phase.PARAMS, start);
+      }
+    }
+    // Handle multipart/form-data requests. Parts are kept as the bytes that were sent, which is
+    // exact for binary files too, and are only decoded if they are looked up as params.
+    Charset charset;
+    try {
+      charset = Charset.forName(requestCharset);
+    } catch (IllegalArgumentException e) {
+      return new RequestParameters.Body(ImmutableListMultimap.<String, String>of());
+    }
+    long start = timer.start();
+    ImmutableListMultimap.Builder<String, byte[]> parts = new ImmutableListMultimap.Builder<>();
+    ImmutableListMultimap.Builder<String, byte[]> files = new ImmutableListMultimap.Builder<>();
+    try {
+      long bytesLeft = maxBodyBytes;
+      for (int count = 1; multipartIterator.hasNext(); count++) {
+        FileItemStream item = multipartIterator.next();
+        if (count > MAX_MULTIPART_PARTS) {
+          throw new PayloadTooLargeException("Too many parts");
+        }
+        long maxPartBytes =
+            item.isFormField() ? MAX_MULTIPART_FIELD_BYTES : MAX_MULTIPART_FILE_BYTES;
+        byte[] bytes;
+        try (InputStream stream = item.openStream()) {
+          // Read at most one byte more than is allowed, which is enough to tell that it's too much.
+          bytes = ByteStreams.toByteArray(
+              ByteStreams.limit(stream, Math.min(maxPartBytes, bytesLeft) + 1));
+        }
+        if (bytes.length > maxPartBytes) {
+          throw new PayloadTooLargeException("Part too large");
         }
-      } catch (FileUploadException | IOException e) {
-        // Ignore the failure and fall through to return whatever params we managed to parse.
+        bytesLeft -= bytes.length;
+        if (bytesLeft < 0) {
+          throw new PayloadTooLargeException("Request body too large");
+        }
+        String name = item.isFormField() ? item.getFieldName() : item.getName();
+        parts.put(name, bytes);
+        if (!item.isFormField()) {
+          files.put(name, bytes);
+        }
+      }
+    } catch (SizeLimitExceededException e) {
+      throw new PayloadTooLargeException("Request body too large");
+    } catch (FileUploadIOException e) {
+      if (e.getCause() instanceof SizeLimitExceededException) {
+        throw new PayloadTooLargeException("Request body too large");
       }
+      // Otherwise ignore the failure and fall through to return whatever params we parsed.
+    } catch (FileUploadException | IOException e) {
+      // Ignore the failure and fall through to return whatever params we managed to parse.
+    } finally {
+      timer.stop(Phase.PARAMS, start);
     }
-    return params.build();
+    return new RequestParameters.Body(parts.build(), files.build(), charset);
   }
 
+  /**
+   * Provides the URL of the easter egg that the request triggers, if any. Only the params that
+   * easter eggs are keyed on are looked up, so no other params are decoded.
+   */
   @Provides
   @Singleton
   @EasterEggs
   String provideEasterEggUrl(
-      Multimap<String, String> params, @EasterEggs Table<String, String, String> easterEggs) {
-    for (Entry<String, String> param : params.entries()) {
-      String easterEggUrl = easterEggs.get(param.getKey(), param.getValue());
-      if (easterEggUrl != null) {
-        return easterEggUrl;
+      RequestParameters params, @EasterEggs Table<String, String, String> easterEggs) {
+    for (Entry<String, Map<String, String>> egg : easterEggs.rowMap().entrySet()) {
+      for (String value : params.getValues(egg.getKey())) {
+        String easterEggUrl = egg.getValue().get(value);
+        if (easterEggUrl != null) {
+          return easterEggUrl;
+        }
       }
     }
     return null;
@@ -143,9 +232,9 @@ public class HttpApiModule {
 
   @Provides
   @Param("status")
-  Integer provideStatus(Multimap<String, String> params, @EasterEggs String easterEggUrl) {
+  Integer provideStatus(RequestParameters params, @EasterEggs String easterEggUrl) {
     if (easterEggUrl == null) {
-      String statusString = getFirst(params.get("status"), null);
+      String statusString = params.getFirstValue("status");
       return statusString == null ? null : parseInt(statusString);
     }
     return HttpServletResponse.SC_FOUND;
@@ -153,45 +242,152 @@ public class HttpApiModule {
 
   @Provides
   @Param("sleep")
-  Integer provideSleep(Multimap<String, String> params) {
-    String sleepString = getFirst(params.get("sleep"), null);
+  Integer provideSleep(RequestParameters params) {
+    String sleepString = params.getFirstValue("sleep");
     return sleepString == null ? null : parseInt(sleepString);
   }
 
   @Provides
   @Param("mime")
-  String provideMime(Multimap<String, String> params) {
-    return getFirst(params.get("mime"), null);
+  String provideMime(RequestParameters params) {
+    return params.getFirstValue("mime");
   }
 
   @Provides
   @Param("payload")
-  String providePayload(Multimap<String, String> params, @EasterEggs String easterEggUrl) {
-    return easterEggUrl == null ? getFirst(params.get("payload"), null) : easterEggUrl;
+  String providePayload(
+      RequestParameters params,
+      @EasterEggs String easterEggUrl,
+      @RequestData("postBody") Lazy<String> lazyPostBody) {
+    if (easterEggUrl != null) {
+      return easterEggUrl;
+    }
+    // With "postpayload" the POST body is the payload, unless there's a literal "payload" too.
+    String payload = params.getFirstValue("payload");
+    return payload == null && params.containsKey("postpayload")
+        ? nullToEmpty(lazyPostBody.get())
+        : payload;
+  }
+
+  /**
+   * Provides the POST body for streaming back as the payload, or null if the payload isn't the
+   * POST body. This isn't read up front, so a body that turns out to be bigger than the action's
+   * streamed body size fails with a {@link PayloadTooLargeException} when its first byte past the
+   * limit is read, rather than being cut short.
+   */
+  @Provides
+  @Param("postpayload")
+  InputStream providePostPayloadStream(
+      RequestParameters params,
+      @EasterEggs String easterEggUrl,
+      HttpServletRequest request,
+      @RequestData("maxStreamedBodyBytes") int maxStreamedBodyBytes) {
+    if (easterEggUrl != null
+        || !params.containsKey("postpayload")
+        || params.containsKey("payload")) {
+      return null;
+    }
+    try {
+      return new SizeLimitedInputStream(request.getInputStream(), maxStreamedBodyBytes);
+    } catch (IOException e) {
+      return null;
+    }
   }
 
+  /**
+   * Provides the raw bytes of the POST body as the payload, or null if the payload isn't the POST
+   * body. This is for payloads that are kept rather than streamed, and that may be binary.
+   */
+  @Provides
+  @Param("postpayload")
+  byte[] providePostPayloadBytes(
+      RequestParameters params,
+      @EasterEggs String easterEggUrl,
+      @RequestData("postBody") Lazy<byte[]> lazyPostBody) {
+    if (easterEggUrl != null
+        || !params.containsKey("postpayload")
+        || params.containsKey("payload")) {
+      return null;
+    }
+    return lazyPostBody.get();
+  }
+
+  /** A stream that fails on the first byte past a limit, instead of ending as if that were all. */
+  private static class SizeLimitedInputStream extends FilterInputStream {
+
+    private long bytesLeft;
+
+    SizeLimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.bytesLeft = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      // Never read more than one byte past the limit, which is enough to tell that it's too much.
+      int read = in.read(b, off, (int) Math.min(len, bytesLeft + 1));
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, bytesLeft + 1));
+      count(skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void count(long read) {
+      bytesLeft -= read;
+      if (bytesLeft < 0) {
+        throw new PayloadTooLargeException("Request body too large");
+      }
+    }
+  }
+
+  /** Provides the token param, after applying the action's rate limit to it. */
   @Provides
   @Param("token")
-  String provideToken(Multimap<String, String> params) {
-    return getFirst(params.get("token"), null);
+  String provideToken(RequestParameters params, RequestRateLimiter rateLimiter) {
+    String token = params.getFirstValue("token");
+    if (token != null) {
+      rateLimiter.acquireForToken(token);
+    }
+    return token;
   }
 
   @Provides
   @Param("delcookie")
-  List<String> provideDelCookie(Multimap<String, String> params) {
-    return ImmutableList.copyOf(params.get("delcookie"));
+  List<String> provideDelCookie(RequestParameters params) {
+    return ImmutableList.copyOf(params.getValues("delcookie"));
   }
 
   @Provides
   @Param("addcookie")
-  Map<String, String> provideAddCookie(Multimap<String, String> params) {
-    return parseMap(params.get("addcookie"));
+  Map<String, String> provideAddCookie(RequestParameters params) {
+    return parseMap(params.getValues("addcookie"));
   }
 
   @Provides
   @Param("header")
-  Map<String, String> provideHeader(Multimap<String, String> params) {
-    return parseMap(params.get("header"));
+  Map<String, String> provideHeader(RequestParameters params) {
+    return parseMap(params.getValues("header"));
   }
 
   @Provides
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.http;
+
+import static com.google.common.collect.Iterables.getFirst;
+import static foo.domaintest.util.QueryStringHelper.parseQuery;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
+
+import dagger.Lazy;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The params of a request, parsed only when first asked for.
+ * <p>
+ * A param's values are those in the query string followed by those in the POST body. The POST
+ * body is only read and parsed when the first param is looked up, and never for GETs, or when the
+ * "postpayload" param makes it the payload instead of a source of params.
+ */
+class RequestParameters {
+
+  /**
+   * The params in a POST body.
+   * <p>
+   * The parts of a multipart/form-data body are kept as the bytes that were sent, and are only
+   * decoded when they are looked up as params. Uploaded files can also be had as those exact
+   * bytes, which binary content doesn't survive decoding as.
+   */
+  static class Body {
+
+    /** The params by name, which for a multipart body are decoded on each lookup. */
+    private final Multimap<String, String> params;
+
+    /** The bytes of the uploaded files in a multipart body, by file name. */
+    private final ListMultimap<String, byte[]> files;
+
+    /** Creates the body of a form-urlencoded request. */
+    Body(Multimap<String, String> params) {
+      this.params = params;
+      this.files = ImmutableListMultimap.of();
+    }
+
+    /**
+     * Creates the body of a multipart/form-data request from all of its {@code parts}, which are
+     * form fields by field name and files by file name, and just the {@code files}.
+     */
+    Body(
+        ListMultimap<String, byte[]> parts,
+        ListMultimap<String, byte[]> files,
+        final Charset charset) {
+      this.params = Multimaps.transformValues(parts, new Function<byte[], String>() {
+          @Override
+          public String apply(byte[] bytes) {
+            return new String(bytes, charset);
+          }});
+      this.files = files;
+    }
+  }
+
+  private final String queryString;
+
+  /** The POST body, or null if the request can't have params in one. */
+  private final Lazy<Body> lazyBody;
+
+  private final PhaseTimer timer;
+
+  /** The values looked up so far, when there is a body, so that each is decoded only once. */
+  private final Map<String, Collection<String>> values = new HashMap<>();
+
+  private Multimap<String, String> queryParams;
+  private Body body;
+
+  RequestParameters(String queryString, Lazy<Body> lazyBody, PhaseTimer timer) {
+    this.queryString = queryString;
+    this.lazyBody = lazyBody;
+    this.timer = timer;
+  }
+
+  /** Returns the first value of a param, or null if there isn't one. */
+  String getFirstValue(String name) {
+    return getFirst(getValues(name), null);
+  }
+
+  boolean containsKey(String name) {
+    return !getValues(name).isEmpty();
+  }
+
+  /** Returns the values of a param, with those in the query string first. */
+  Collection<String> getValues(String name) {
+    Collection<String> queryValues = getQueryParams().get(name);
+    if (!hasBodyParams()) {
+      return queryValues;
+    }
+    Collection<String> allValues = values.get(name);
+    if (allValues == null) {
+      Multimap<String, String> bodyParams = getBody().params;
+      long start = timer.start();
+      allValues = new ImmutableList.Builder<String>()
+          .addAll(queryValues)
+          .addAll(bodyParams.get(name))
+          .build();
+      timer.stop(Phase.PARAMS, start);
+      values.put(name, allValues);
+    }
+    return allValues;
+  }
+
+  /**
+   * Returns the bytes of the files uploaded in a multipart/form-data POST body with the file name
+   * {@code name}, exactly as they were sent.
+   */
+  List<byte[]> getFileValues(String name) {
+    return hasBodyParams() ? getBody().files.get(name) : ImmutableList.<byte[]>of();
+  }
+
+  /**
+   * Returns whether the POST body is a source of params.
+   * <p>
+   * Calling request.getParameter() or request.getParameterMap() etc. consumes the POST body. If
+   * we got the "postpayload" param we don't want to parse the body, so use only the query params.
+   * Note that specifying both "payload" and "postpayload" will result in the "payload" param
+   * being honored and the POST body being completely ignored.
+   */
+  private boolean hasBodyParams() {
+    return lazyBody != null && !getQueryParams().containsKey("postpayload");
+  }
+
+  private Body getBody() {
+    if (body == null) {
+      body = lazyBody.get();
+    }
+    return body;
+  }
+
+  private Multimap<String, String> getQueryParams() {
+    if (queryParams == null) {
+      long start = timer.start();
+      queryParams = parseQuery(queryString);
+      timer.stop(Phase.PARAMS, start);
+    }
+    return queryParams;
+  }
+}
@@ -25,6 +25,9 @@ import com.google.appengine.api.memcache.Expiration;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
 import foo.domaintest.action.Response;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.MaxBodySize;
+import foo.domaintest.action.annotation.RateLimit;
+import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.http.HttpApiModule.Param;
 import foo.domaintest.http.HttpApiModule.RandomToken;
 import foo.domaintest.util.Key;
@@ -34,6 +37,7 @@ import foo.domaintest.util.TempUrlFactory;
 import dagger.Lazy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +47,8 @@ import javax.inject.Inject;
 
 /** Action for /stash endpoint. */
 @ForPath("/stash")
+@MaxBodySize(256 << 10)
+@RateLimit(perMinute = 60, burst = 20)
 public class StashAction extends EchoOrStashAction {
 
   private static final int MAX_PARAM_REPETITION = 20;
@@ -58,8 +64,11 @@ public class StashAction extends EchoOrStashAction {
   @Inject Memcache memcache;
   @Inject @RandomToken Lazy<String> lazyRandomToken;
   @Inject @Param("token") String tokenParam;
+  @Inject @Param("payload") Lazy<String> payload;
+  @Inject @Param("postpayload") byte[] postPayloadBytes;
   @Inject Response response;
   @Inject TempUrlFactory tempUrlFactory;
+  @Inject @RequestData("method") String method;
 
   /** Stash requests for later retrieval. */
   @Override
@@ -85,8 +94,17 @@ public class StashAction extends EchoOrStashAction {
     params.put(
         "headers",
         truncate(headers, MAX_PARAM_REPETITION, NAME_MAX_LENGTH, VALUE_MAX_LENGTH));
-    params.put("payload", truncate(payload, PAYLOAD_MAX_LENGTH));
-    memcache.save(new Key(STASH, token), params, STASH_EXPIRATION);
+    // Keep a POST body payload as bytes so that binary content survives, unless it's needed as a
+    // redirect location.
+    if (postPayloadBytes != null && (status == null || status < 300 || status >= 400)) {
+      params.put("payloadBytes", truncate(postPayloadBytes, PAYLOAD_MAX_LENGTH));
+    } else {
+      params.put("payload", truncate(payload.get(), PAYLOAD_MAX_LENGTH));
+    }
+    // A HEAD request gets the same headers as a GET would, without stashing anything.
+    if (!"HEAD".equals(method)) {
+      memcache.save(new Key(STASH, token), params, STASH_EXPIRATION);
+    }
     response.setPayload(tempUrlFactory.getTempUrl(token)).send();
   }
 
@@ -94,6 +112,10 @@ public class StashAction extends EchoOrStashAction {
     return input == null ? null : input.substring(0, Math.min(input.length(), length));
   }
 
+  private byte[] truncate(byte[] input, int length) {
+    return input.length <= length ? input : Arrays.copyOf(input, length);
+  }
+
   private List<String> truncate(Iterable<String> input, int maxValues, int valueLength) {
     if (input == null) {
       return null;
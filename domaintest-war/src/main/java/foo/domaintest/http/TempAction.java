@@ -18,13 +18,12 @@ package foo.domaintest.http;
 
 import static foo.domaintest.util.Key.Type.STASH;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
 import foo.domaintest.action.Action.GetAction;
 import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.HttpErrorException.NotFoundException;
 import foo.domaintest.action.Response;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.RateLimit;
 import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
@@ -35,18 +34,20 @@ import java.util.Map;
 import javax.inject.Inject;
 
 /** Action for retrieving /stash results and serving them on /temp. */
-@ForPath("/temp/*")
+@ForPath("/temp/{token}")
+@RateLimit(perMinute = 120, burst = 20)
 public class TempAction implements GetAction, PostAction {
 
   @Inject Memcache memcache;
   @Inject Response response;
-  @Inject @RequestData("path") String requestPath;
+  @Inject @RequestData("pathVariables") Map<String, String> pathVariables;
+  @Inject @RequestData("method") String method;
 
   /** Serve stashed requests. */
   @Override
   @SuppressWarnings("unchecked")
   public void run() {
-    String token = Iterables.getLast(Splitter.on('/').split(requestPath), "");
+    String token = pathVariables.get("token");
     Map<String, Object> params = memcache.load(new Key(STASH, token));
     if (params == null) {
       throw new NotFoundException("No stashed request for this token");
@@ -59,8 +60,13 @@ public class TempAction implements GetAction, PostAction {
           .setCookiesToAdd((Map<String, String>) params.get("cookiesToAdd"))
           .setHeaders((Map<String, String>) params.get("headers"))
           .setPayload((String) params.get("payload"))
+          .setPayloadBytes((byte[]) params.get("payloadBytes"))
           .send();
-      memcache.delete(new Key(STASH, token));
+      // A HEAD request checks that the stash exists without consuming it, and a Range request only
+      // consumes it once the final byte has been served, so that downloads can be resumed.
+      if (!"HEAD".equals(method) && response.servedFinalByte()) {
+        memcache.delete(new Key(STASH, token));
+      }
     }
   }
 }
@@ -24,6 +24,8 @@ import foo.domaintest.action.Action.GetAction;
 import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.Response;
 import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.RateLimit;
+import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.http.HttpApiModule.RandomToken;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
@@ -32,20 +34,24 @@ import javax.inject.Inject;
 
 /** Action for /token endpoint, which returns a token that can be used with /stash or an email. */
 @ForPath("/token")
+@RateLimit(perMinute = 60, burst = 10)
 public class TokenAction implements GetAction, PostAction {
 
   @Inject Response response;
   @Inject @RandomToken String randomToken;
   @Inject Memcache memcache;
+  @Inject @RequestData("method") String method;
 
   /** Expire tokens after 1 hour. */
   private static final Expiration TOKEN_EXPIRATION =
       Expiration.byDeltaSeconds((int) HOURS.toSeconds(1));
 
-  /** Store a random token in memcache and return it. */
+  /** Store a random token in memcache and return it. A HEAD request doesn't store it. */
   @Override
   public void run() {
-    memcache.save(new Key(TOKEN, randomToken), true, TOKEN_EXPIRATION);
+    if (!"HEAD".equals(method)) {
+      memcache.save(new Key(TOKEN, randomToken), true, TOKEN_EXPIRATION);
+    }
     response.setPayload(randomToken).send();
   }
 }
@@ -18,19 +18,22 @@ package foo.domaintest.landing;
 
 import static com.google.common.io.Resources.getResource;
 import static com.google.common.net.MediaType.HTML_UTF_8;
-import static java.net.IDN.toUnicode;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Resources;
-import com.google.common.net.InternetDomainName;
 import foo.domaintest.action.Action.GetAction;
 import foo.domaintest.action.Response;
 import foo.domaintest.action.annotation.ForPath;
-import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.config.SystemProperty;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.util.ParsedHost;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
@@ -41,9 +44,37 @@ public class LandingAction implements GetAction {
 
   private static final String TEMPLATE = loadTemplate();
 
+  /**
+   * Pages are keyed by the normalized unicode TLD, so every spelling of a host shares one entry.
+   * 256 covers the 189 TLDs in the README with room for new ones. Each page is held plain and
+   * gzipped, about 3 KB in all, so a cache filled with junk TLDs stays under a megabyte.
+   */
+  private static final int MAX_CACHED_PAGES = 256;
+
+  /** Rendered pages keyed by the unicode TLD they were rendered for. */
+  private static final LoadingCache<String, RenderedPage> PAGES = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_PAGES)
+      .build(new CacheLoader<String, RenderedPage>() {
+          @Override
+          public RenderedPage load(String unicodeTld) {
+            return new RenderedPage(TEMPLATE.replace("{{TLD}}", unicodeTld).getBytes(UTF_8));
+          }});
+
+  /** The landing page for one TLD, rendered once along with its gzipped copy and ETag. */
+  private static class RenderedPage {
+    final byte[] bytes;
+    final byte[] gzipped;
+    final String etag;
+
+    RenderedPage(byte[] bytes) {
+      this.bytes = bytes;
+      this.gzipped = Response.gzip(bytes);
+      this.etag = "\"" + Hashing.murmur3_128().hashBytes(bytes) + "\"";
+    }
+  }
+
   @Inject @SystemProperty("sourceurl") String sourceurl;
-  @Inject @RequestData("domainName") InternetDomainName domainName;
-  @Inject @RequestData("tld") String tld;
+  @Inject ParsedHost host;
   @Inject Response response;
   @Inject Metrics metrics;
 
@@ -57,7 +88,8 @@ public class LandingAction implements GetAction {
 
   @Override
   public void run() {
-    if (domainName.parts().size() == 3 && "src".equals(domainName.parts().get(0))) {
+    List<String> parts = host.getDomainName().parts();
+    if (parts.size() == 3 && "src".equals(parts.get(0))) {
       response
           .setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY)
           .setPayload(sourceurl)
@@ -65,9 +97,11 @@ public class LandingAction implements GetAction {
       metrics.addActivity("src");
       return;
     }
+    RenderedPage page = PAGES.getUnchecked(host.getUnicodeTld());
     response
         .setMimeType(HTML_UTF_8.toString())
-        .setPayload(TEMPLATE.replace("{{TLD}}", toUnicode(tld)))
+        .setEtag(page.etag)
+        .setPayloadBytes(page.bytes, page.gzipped)
         .send();
     metrics.addActivity("landing");
   }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.metrics;
+
+import static foo.domaintest.util.QueryStringHelper.getParam;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the time a request spends in each of its {@link Phase phases}.
+ * <p>
+ * Timing is opt-in per request via the "servertiming" query parameter. When it isn't requested the
+ * shared {@link #DISABLED} instance is used, which neither reads the clock nor allocates. Phases
+ * may nest (e.g. parameter parsing happens during injection), and a phase entered more than once
+ * accumulates.
+ * <p>
+ * A deferred sleep ends on whichever thread wakes the request up, not the request thread, so the
+ * totals are atomic and can be updated and read from any thread.
+ */
+public class PhaseTimer {
+
+  /** The phases of a request that are worth timing separately. */
+  public enum Phase {
+    /** Building the request graph and injecting the action, including everything it needs. */
+    INJECT,
+    /** Parsing the query string and POST body into parameters. */
+    PARAMS,
+    /** Memcache round trips. */
+    MEMCACHE,
+    /** Requested sleeps. */
+    SLEEP,
+    /** Writing the response body. */
+    WRITE;
+
+    final String metricName = name().toLowerCase(Locale.ENGLISH);
+  }
+
+  /** A timer that does nothing, for requests that didn't ask for timing. */
+  public static final PhaseTimer DISABLED = new PhaseTimer(false);
+
+  private static final String QUERY_PARAM = "servertiming";
+
+  private final AtomicLongArray nanos;
+
+  private PhaseTimer(boolean enabled) {
+    this.nanos = enabled ? new AtomicLongArray(Phase.values().length) : null;
+  }
+
+  /** Returns a new timer if the query string asks for one, or else {@link #DISABLED}. */
+  public static PhaseTimer forQuery(String query) {
+    try {
+      return getParam(query, QUERY_PARAM) != null ? new PhaseTimer(true) : DISABLED;
+    } catch (IllegalArgumentException e) {
+      // The param is there, only its (ignored) value is malformed.
+      return new PhaseTimer(true);
+    }
+  }
+
+  public boolean isEnabled() {
+    return nanos != null;
+  }
+
+  /** Returns a start time to pass to {@link #stop}, or 0 if disabled. */
+  public long start() {
+    return nanos == null ? 0 : System.nanoTime();
+  }
+
+  /** Adds the time since {@code startNanos} (from {@link #start}) to the given phase. */
+  public void stop(Phase phase, long startNanos) {
+    if (nanos != null) {
+      nanos.addAndGet(phase.ordinal(), System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Returns the timed phases in the format of a Server-Timing header value, with durations in
+   * milliseconds, e.g. "inject;dur=1.402, memcache;dur=3.018". Phases that weren't entered are
+   * left out. The header goes out before the body, so this never includes {@link Phase#WRITE}.
+   */
+  public String toServerTiming() {
+    return format(";dur=", ", ");
+  }
+
+  /**
+   * Returns the timed phases for metrics export, e.g. "inject:1.402 memcache:3.018". Metrics are
+   * exported when the action returns, so for a request whose sleep was deferred this only has the
+   * phases before the sleep.
+   */
+  public String toMetricsString() {
+    return format(":", " ");
+  }
+
+  private String format(String nameSeparator, String phaseSeparator) {
+    StringBuilder builder = new StringBuilder();
+    if (nanos != null) {
+      for (Phase phase : Phase.values()) {
+        long phaseNanos = nanos.get(phase.ordinal());
+        if (phaseNanos > 0) {
+          builder
+              .append(builder.length() == 0 ? "" : phaseSeparator)
+              .append(phase.metricName)
+              .append(nameSeparator)
+              .append(String.format(Locale.ENGLISH, "%.3f", phaseNanos / 1e6));
+        }
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -23,12 +23,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.google.api.services.bigquery.Bigquery;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.config.SystemProperty;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -43,12 +46,16 @@ class MetricsImpl implements Metrics {
 
   private static final Logger logger = Logger.getLogger(MetricsImpl.class.getName());
 
+  /** Matches the first character of a wildcard or path variable path segment. */
+  private static final CharMatcher WILDCARD_MATCHER = CharMatcher.anyOf("*{");
+
   @Inject @RequestData("actionPath") String actionPath;
   @Inject @RequestData("startTime") long startTimeMillis;
   @Inject @RequestData("tld") String tld;
   @Inject @RequestData("method") String method;
   @Inject @SystemProperty("projectid") String projectId;
   @Inject Bigquery bigquery;
+  @Inject PhaseTimer timer;
 
   private final Set<String> activities = new HashSet<>();
 
@@ -75,17 +82,19 @@ class MetricsImpl implements Metrics {
     for (int delaySeconds : ImmutableList.of(0, 2, 4)) {
       sleepUninterruptibly(delaySeconds, SECONDS);
       try {
-        getDefaultQueue().add(withUrl("/task/metrics")
+        TaskOptions task = withUrl("/task/metrics")
             .param("insertid", UUID.randomUUID().toString())
-            .param("path", actionPath.endsWith("/*")
-                ? actionPath.substring(0, actionPath.length() - 2)
-                : actionPath)
+            .param("path", getReportedPath())
             .param("method", method)
             .param("tld", tld)
             .param("starttime", String.valueOf(MILLISECONDS.toSeconds(startTimeMillis)))
             .param("endtime", String.valueOf(MILLISECONDS.toSeconds(System.currentTimeMillis())))
             .param("responsecode", String.valueOf(responseCode))
-            .param("activity", Joiner.on(' ').join(activities)));
+            .param("activity", Joiner.on(' ').join(activities));
+        if (timer.isEnabled()) {
+          task.param("phases", timer.toMetricsString());
+        }
+        getDefaultQueue().add(task);
         return;
       } catch (TransientFailureException e) {
         // Log and swallow.
@@ -94,4 +103,12 @@ class MetricsImpl implements Metrics {
       logger.severe("Failed to create metric exporting task.");
     }
   }
+
+  /** Returns the action path up to any wildcard or path variable, e.g. "/temp" for "/temp/*". */
+  String getReportedPath() {
+    int wildcardIndex = WILDCARD_MATCHER.indexIn(actionPath);
+    return wildcardIndex == -1
+        ? actionPath
+        : actionPath.substring(0, Math.max(wildcardIndex - 1, 1));
+  }
 }
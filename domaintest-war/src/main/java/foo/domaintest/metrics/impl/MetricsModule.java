@@ -95,6 +95,12 @@ public class MetricsModule {
     return request.getParameter("activity");
   }
 
+  @Provides
+  @Param("phases")
+  String providePhases(HttpServletRequest request) {
+    return request.getParameter("phases");
+  }
+
   @Provides
   @Param("responsecode")
   int provideResponseCode(HttpServletRequest request) {
@@ -50,6 +50,7 @@ public class MetricsTaskAction implements PostAction {
   @Inject @Param("starttime") String startTime;
   @Inject @Param("endtime") String endTime;
   @Inject @Param("activity") String activity;
+  @Inject @Param("phases") String phases;
   @Inject @Param("responsecode") int responseCode;
   @Inject @SystemProperty("projectid") String projectId;
   @Inject Bigquery bigquery;
@@ -57,20 +58,24 @@ public class MetricsTaskAction implements PostAction {
   /** Exports metrics to BigQuery. */
   @Override
   public void run() {
+    ImmutableMap.Builder<String, Object> row = new ImmutableMap.Builder<String, Object>()
+        .put("path", path)
+        .put("method", method)
+        .put("tld", tld)
+        .put("start_time", startTime)
+        .put("end_time", endTime)
+        .put("response_code", responseCode)
+        .put("activity", activity);
+    // Phase timings are only present for requests that asked for them.
+    if (phases != null) {
+      row.put("phases", phases);
+    }
     try {
       TableDataInsertAllResponse response = bigquery.tabledata()
           .insertAll(projectId, DATASET_ID, TABLE_ID, new TableDataInsertAllRequest()
               .setRows(ImmutableList.of(new TableDataInsertAllRequest.Rows()
                   .setInsertId(insertId)
-                  .setJson(new ImmutableMap.Builder<String, Object>()
-                      .put("path", path)
-                      .put("method", method)
-                      .put("tld", tld)
-                      .put("start_time", startTime)
-                      .put("end_time", endTime)
-                      .put("response_code", responseCode)
-                      .put("activity", activity)
-                      .build())))).execute();
+                  .setJson(row.build())))).execute();
       if (response.getInsertErrors() != null && !response.getInsertErrors().isEmpty()) {
         throw new RuntimeException(Joiner.on('\n').join(FluentIterable
             .from(response.getInsertErrors())
@@ -23,6 +23,8 @@ import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import foo.domaintest.action.annotation.RequestData;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -42,11 +44,13 @@ public class Memcache {
   private final String namespace;
 
   private final Metrics metrics;
+  private final PhaseTimer timer;
 
   @Inject
-  public Memcache(@RequestData("tld") String namespace, Metrics metrics) {
+  public Memcache(@RequestData("tld") String namespace, Metrics metrics, PhaseTimer timer) {
     this.namespace = namespace;
     this.metrics = metrics;
+    this.timer = timer;
   }
 
   private MemcacheService initMemcacheService() {
@@ -60,7 +64,9 @@ public class Memcache {
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         ObjectOutputStream objectStream = new ObjectOutputStream(byteStream)) {
       objectStream.writeObject(value);
+      long start = timer.start();
       memcacheService.put(key.getRawKey(), byteStream.toByteArray(), expiration);
+      timer.stop(Phase.MEMCACHE, start);
       metrics.addActivity(activity("save", key));
     } catch (IOException e) {
       throw new RuntimeException(e);
@@ -71,7 +77,9 @@ public class Memcache {
   public <T> T load(Key key) {
     byte[] bytes;
     try (Namespace n = new Namespace(namespace)) {
+      long start = timer.start();
       bytes = (byte[]) memcacheService.get(key.getRawKey());
+      timer.stop(Phase.MEMCACHE, start);
     }
     if (bytes == null) {
       return null;
@@ -88,7 +96,9 @@ public class Memcache {
   public void delete(Key key) {
     try (Namespace n = new Namespace(namespace)) {
       metrics.addActivity(activity("delete", key));
+      long start = timer.start();
       memcacheService.delete(key.getRawKey());
+      timer.stop(Phase.MEMCACHE, start);
     }
   }
 
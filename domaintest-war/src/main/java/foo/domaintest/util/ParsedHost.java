@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util;
+
+import static com.google.common.collect.Iterables.getLast;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.net.InternetDomainName;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.net.IDN;
+
+/**
+ * The parsed forms of a request host.
+ * <p>
+ * Parsing a host involves a public suffix lookup and punycode conversions, and the service only
+ * answers for a small, fixed set of hosts, so parsed hosts are cached.
+ */
+public class ParsedHost {
+
+  /**
+   * Hosts are cached as they appear in the URL, so each of the 189 domaintest hosts listed in the
+   * README may take an entry for its punycode spelling and another for its unicode one. 1024
+   * leaves room for that, for other letter cases and for the appspot hosts. Entries are small, so
+   * the bound is only there to stop junk Host headers from growing the cache without limit.
+   */
+  private static final int MAX_CACHED_HOSTS = 1024;
+
+  private static final LoadingCache<String, ParsedHost> CACHE = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_HOSTS)
+      .build(new CacheLoader<String, ParsedHost>() {
+          @Override
+          public ParsedHost load(String host) {
+            return new ParsedHost(host);
+          }});
+
+  private final InternetDomainName domainName;
+  private final String tld;
+  private final String unicodeHost;
+  private final String unicodeTld;
+
+  private ParsedHost(String host) {
+    this.domainName = InternetDomainName.from(host);
+    this.tld = getLast(domainName.parts());
+    this.unicodeHost = IDN.toUnicode(host);
+    this.unicodeTld = IDN.toUnicode(tld);
+  }
+
+  /**
+   * Returns the parsed host of an absolute URL.
+   *
+   * @throws IllegalArgumentException if the host isn't a valid domain name
+   */
+  public static ParsedHost forUrl(String url) {
+    try {
+      return CACHE.getUnchecked(getHost(url));
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /** Returns the host of an absolute URL, without parsing the rest of it. */
+  static String getHost(String url) {
+    int start = url.indexOf("://") + 3;
+    int end = start;
+    while (end < url.length() && "/:?#".indexOf(url.charAt(end)) == -1) {
+      end++;
+    }
+    return url.substring(start, end);
+  }
+
+  /** Returns the full domain name, including subdomains, as it appears in the URL. */
+  public InternetDomainName getDomainName() {
+    return domainName;
+  }
+
+  /** Returns the top level domain, as it appears in the URL. */
+  public String getTld() {
+    return tld;
+  }
+
+  /** Returns the full host name, with unicode characters. */
+  public String getUnicodeHost() {
+    return unicodeHost;
+  }
+
+  /** Returns the top level domain, with unicode characters. */
+  public String getUnicodeTld() {
+    return unicodeTld;
+  }
+}
@@ -16,41 +16,209 @@
 
 package foo.domaintest.util;
 
-import static com.google.common.base.Strings.nullToEmpty;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.List;
 import java.util.Map;
 
 /** Utility class to create and parse query strings. */
 public class QueryStringHelper {
 
+  /**
+   * Param names that are parsed to shared instances instead of to a new string for every request.
+   * These are the params of the HTTP API, plus a few other common ones.
+   */
+  private static final String[] KNOWN_NAMES = {
+      "addcookie", "delcookie", "header", "mime", "payload", "postpayload", "servertiming",
+      "sleep", "status", "token"};
+
+  /**
+   * Parses a query string or form body into a multimap of decoded names to decoded values.
+   * <p>
+   * This gives the same results as splitting on '&' and '=' and passing each piece to
+   * {@link URLDecoder#decode} with UTF-8, including throwing {@link IllegalArgumentException} for
+   * malformed escapes, but does it in a single pass. Pieces without escapes are copied straight out
+   * of the query, escaped pieces are decoded into a buffer that is reused for the whole query, and
+   * names in {@link #KNOWN_NAMES} aren't copied at all.
+   */
   public static Multimap<String, String> parseQuery(String query) {
     ImmutableListMultimap.Builder<String, String> params = new ImmutableListMultimap.Builder<>();
-    for (String piece : Splitter.on('&').omitEmptyStrings().split(nullToEmpty(query))) {
-      List<String> keyAndValue = Splitter.on('=').limit(2).splitToList(piece);
-      try {
+    if (query == null || query.isEmpty()) {
+      return params.build();
+    }
+    Decoder decoder = new Decoder(query);
+    int length = query.length();
+    int equals = -1;
+    for (int start = 0; start < length; ) {
+      int end = query.indexOf('&', start);
+      end = end == -1 ? length : end;
+      if (end > start) {  // Skip empty pieces.
+        // Only search for the next '=' once we've passed the last one, to stay linear.
+        if (equals < start) {
+          equals = query.indexOf('=', start);
+          equals = equals == -1 ? length : equals;
+        }
+        int nameEnd = Math.min(equals, end);
         params.put(
-            URLDecoder.decode(keyAndValue.get(0), UTF_8.name()),
-            URLDecoder.decode(Iterables.get(keyAndValue, 1, ""),  UTF_8.name()));
-      } catch (UnsupportedEncodingException e) {
-        throw new AssertionError(e);
+            decoder.decode(start, nameEnd, true),
+            nameEnd == end ? "" : decoder.decode(nameEnd + 1, end, false));
       }
+      start = end + 1;
     }
     return params.build();
   }
 
+  /** Decodes ranges of a query, the way {@link URLDecoder} does for UTF-8. */
+  private static class Decoder {
+
+    private final String query;
+
+    /** Decoded chars, reused for each range. Decoding never makes a range longer. */
+    private char[] chars;
+
+    /** Bytes of the current run of %-escapes, reused for each run. */
+    private byte[] bytes;
+
+    Decoder(String query) {
+      this.query = query;
+    }
+
+    String decode(int start, int end, boolean isName) {
+      int firstEscape = start;
+      while (firstEscape < end
+          && query.charAt(firstEscape) != '%'
+          && query.charAt(firstEscape) != '+') {
+        firstEscape++;
+      }
+      if (firstEscape == end) {
+        return isName ? substringOrKnownName(start, end) : query.substring(start, end);
+      }
+      if (chars == null) {
+        chars = new char[query.length()];
+      }
+      int length = 0;
+      for (int i = start; i < end; ) {
+        char c = query.charAt(i);
+        if (c == '+') {
+          chars[length++] = ' ';
+          i++;
+        } else if (c != '%') {
+          chars[length++] = c;
+          i++;
+        } else {
+          // Collect a whole run of escapes, since a multibyte UTF-8 char spans several of them.
+          if (bytes == null) {
+            bytes = new byte[query.length() / 3];
+          }
+          int count = 0;
+          boolean ascii = true;
+          while (i + 2 < end && query.charAt(i) == '%') {
+            int value = parseHexByte(query.charAt(i + 1), query.charAt(i + 2));
+            bytes[count++] = (byte) value;
+            ascii &= value < 0x80;
+            i += 3;
+          }
+          if (i < end && query.charAt(i) == '%') {
+            throw new IllegalArgumentException(
+                "URLDecoder: Incomplete trailing escape (%) pattern");
+          }
+          if (ascii) {
+            for (int j = 0; j < count; j++) {
+              chars[length++] = (char) bytes[j];
+            }
+          } else {
+            // Let the charset handle multibyte and malformed sequences, which are rare.
+            String decoded = new String(bytes, 0, count, UTF_8);
+            decoded.getChars(0, decoded.length(), chars, length);
+            length += decoded.length();
+          }
+        }
+      }
+      return isName ? newStringOrKnownName(length) : new String(chars, 0, length);
+    }
+
+    private String substringOrKnownName(int start, int end) {
+      for (String name : KNOWN_NAMES) {
+        if (name.length() == end - start && query.startsWith(name, start)) {
+          return name;
+        }
+      }
+      return query.substring(start, end);
+    }
+
+    private String newStringOrKnownName(int length) {
+      for (String name : KNOWN_NAMES) {
+        if (name.length() == length && matches(name, length)) {
+          return name;
+        }
+      }
+      return new String(chars, 0, length);
+    }
+
+    private boolean matches(String name, int length) {
+      for (int i = 0; i < length; i++) {
+        if (chars[i] != name.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Parses two chars as a hex byte, exactly as {@link URLDecoder} does with
+     * {@link Integer#parseInt(String, int)}. That accepts any Unicode digit and a leading sign,
+     * and then rejects negative values, so "%+1" is 0x01 and "%-0" is 0x00.
+     */
+    private static int parseHexByte(char high, char low) {
+      int lowDigit = Character.digit(low, 16);
+      int highDigit = (high == '+' || (high == '-' && lowDigit == 0))
+          ? 0
+          : Character.digit(high, 16);
+      if (highDigit == -1 || lowDigit == -1) {
+        throw new IllegalArgumentException(
+            "URLDecoder: Illegal hex characters in escape (%) pattern");
+      }
+      return highDigit * 16 + lowDigit;
+    }
+  }
+
+  /**
+   * Returns the decoded value of the first param named {@code name} in {@code query}, the empty
+   * string if it has no value, or null if it isn't there. This avoids parsing the whole query, but
+   * only finds names that are the same encoded and decoded.
+   *
+   * @throws IllegalArgumentException if the value is not validly percent-encoded
+   */
+  public static String getParam(String query, String name) {
+    if (query == null) {
+      return null;
+    }
+    for (int start = 0; start <= query.length(); ) {
+      int end = query.indexOf('&', start);
+      end = end == -1 ? query.length() : end;
+      int nameEnd = start + name.length();
+      if (query.startsWith(name, start) && (nameEnd == end || query.charAt(nameEnd) == '=')) {
+        try {
+          return nameEnd == end
+              ? ""
+              : URLDecoder.decode(query.substring(nameEnd + 1, end), UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+          throw new AssertionError(e);
+        }
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
   public static String encodeQuery(Map<String, String> params) {
     return Joiner.on('&').withKeyValueSeparator("=").join(Maps.transformValues(
         params,
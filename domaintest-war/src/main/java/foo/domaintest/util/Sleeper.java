@@ -18,21 +18,108 @@ package foo.domaintest.util;
 
 import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
 
+import foo.domaintest.action.AdmissionController;
+import foo.domaintest.action.HttpErrorException.ServiceUnavailableException;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 
 /** Mockable utility object for sleeping. */
 public class Sleeper {
 
+  /**
+   * Request attribute under which a servlet container can install a {@link DeferredSleeper}.
+   * <p>
+   * Servlet 2.5 has no standard way to suspend a request, so this is how a container that can do
+   * it (such as the standalone Jetty runtime) offers to, without the actions depending on it.
+   */
+  public static final String DEFERRED_SLEEPER_ATTRIBUTE = "foo.domaintest.deferredsleeper";
+
+  /** Runs code after a delay without blocking the request thread in the meantime. */
+  public interface DeferredSleeper {
+
+    /**
+     * Suspends the current request, and after {@code seconds} runs {@code then} and completes
+     * the response. The request thread returns immediately.
+     */
+    void sleepThen(int seconds, Runnable then);
+  }
+
   @Inject Metrics metrics;
+  @Inject HttpServletRequest request;
+  @Inject PhaseTimer timer;
+  @Inject AdmissionController admissionController;
 
+  /**
+   * Sleeps for the given number of seconds.
+   *
+   * @throws ServiceUnavailableException if the instance is too loaded to take on another sleep
+   */
   public void sleep(int seconds) {
-    if (seconds > 0) {
-      metrics.addActivity("sleep");
+    if (seconds <= 0) {
+      return;
+    }
+    admissionController.admitSleep();
+    metrics.addActivity("sleep");
+    long start = timer.start();
+    try {
+      sleepUninterruptibly(seconds, TimeUnit.SECONDS);
+    } finally {
+      timer.stop(Phase.SLEEP, start);
+      admissionController.releaseSleep();
     }
-    sleepUninterruptibly(seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Sleeps and then runs {@code then}, which should write out the response.
+   * <p>
+   * If the container installed a {@link DeferredSleeper} then this returns right away and
+   * {@code then} runs later on another thread, so it must not depend on anything that only lives
+   * for the duration of the request thread (e.g. metrics, which are exported as soon as the
+   * action returns, and so leave out the sleep phase). The request gives up its admission as
+   * soon as the action returns too, so the sleep stays admitted until {@code then} has finished
+   * writing.
+   *
+   * @throws ServiceUnavailableException if the instance is too loaded to take on another sleep
+   */
+  public void sleepThen(int seconds, Runnable then) {
+    DeferredSleeper deferredSleeper =
+        (DeferredSleeper) request.getAttribute(DEFERRED_SLEEPER_ATTRIBUTE);
+    if (seconds > 0 && deferredSleeper != null) {
+      admissionController.admitSleep();
+      boolean deferred = false;
+      try {
+        metrics.addActivity("sleep");
+        deferredSleeper.sleepThen(seconds, wakeUp(then));
+        deferred = true;
+      } finally {
+        if (!deferred) {
+          admissionController.releaseSleep();  // There will be no wake up to release it.
+        }
+      }
+    } else {
+      sleep(seconds);
+      then.run();
+    }
+  }
+
+  /** Wraps {@code then} so that it ends the sleep that was admitted once it has run. */
+  private Runnable wakeUp(final Runnable then) {
+    final long start = timer.start();
+    return new Runnable() {
+        @Override
+        public void run() {
+          timer.stop(Phase.SLEEP, start);
+          try {
+            then.run();
+          } finally {
+            admissionController.releaseSleep();
+          }
+        }};
   }
 }
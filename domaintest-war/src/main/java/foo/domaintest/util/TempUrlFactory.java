@@ -18,10 +18,6 @@ package foo.domaintest.util;
 
 import foo.domaintest.action.annotation.RequestData;
 
-import java.net.IDN;
-import java.net.URI;
-import java.net.URISyntaxException;
-
 import javax.inject.Inject;
 
 /** Factory for turning tokens from /stash or /token into URLs on /temp. */
@@ -37,17 +33,13 @@ public class TempUrlFactory {
   }
 
   public String getTempUrl(String token) {
-    try {
-      // Make sure to output the temp url with unicode characters.
-      URI oldUri = new URI(requestUrl);
-      return new StringBuilder(oldUri.getScheme())
-          .append("://")
-          .append(IDN.toUnicode(oldUri.getHost()))
-          .append(TEMP_PATH)
-          .append(token)
-          .toString();
-    } catch (URISyntaxException e) {
-      throw new RuntimeException(e);
-    }
+    // Make sure to output the temp url with unicode characters.
+    return new StringBuilder()
+        .append(requestUrl, 0, requestUrl.indexOf("://"))
+        .append("://")
+        .append(ParsedHost.forUrl(requestUrl).getUnicodeHost())
+        .append(TEMP_PATH)
+        .append(token)
+        .toString();
   }
 }
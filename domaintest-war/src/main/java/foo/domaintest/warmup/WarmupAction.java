@@ -0,0 +1,103 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.warmup;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Table;
+import com.google.common.net.InternetDomainName;
+import foo.domaintest.action.Action.GetAction;
+import foo.domaintest.action.Response;
+import foo.domaintest.action.annotation.ForPath;
+import foo.domaintest.action.annotation.NoMetrics;
+import foo.domaintest.config.ConfigModule.EasterEggs;
+import foo.domaintest.landing.LandingAction;
+
+import dagger.Lazy;
+
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Action for App Engine warmup requests, which initializes global state ahead of real traffic.
+ * <p>
+ * Everything here would otherwise be initialized lazily by the first request that needs it, adding
+ * to that request's latency. The time taken by each component is logged and returned.
+ */
+@NoMetrics
+@ForPath("/_ah/warmup")
+public class WarmupAction implements GetAction {
+
+  private static final Logger logger = Logger.getLogger(WarmupAction.class.getName());
+
+  @Inject Lazy<Bigquery> bigquery;
+  @Inject @EasterEggs Lazy<Table<String, String, String>> easterEggs;
+  @Inject HttpServletRequest request;
+  @Inject Response response;
+
+  private final Map<String, Long> timings = new LinkedHashMap<>();
+  private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+
+  @Override
+  public void run() {
+    stopwatch.start();
+    bigquery.get();
+    lap("bigquery");
+    // Parsing the easter eggs also loads json-simple.
+    easterEggs.get();
+    lap("eastereggs");
+    InternetDomainName.from("domaintest.example").isUnderPublicSuffix();
+    lap("publicsuffix");
+    try {
+      // Loads and initializes the class, which reads the page template.
+      Class.forName(LandingAction.class.getName());
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    lap("landing");
+    new ServletFileUpload();
+    ServletFileUpload.isMultipartContent(request);
+    lap("fileupload");
+    try {
+      new InternetHeaders();
+      new InternetAddress("warmup@domaintest.example").validate();
+    } catch (AddressException e) {
+      throw new RuntimeException(e);
+    }
+    lap("javamail");
+    String report = Joiner.on('\n').withKeyValueSeparator(": ").join(timings);
+    logger.info("Warmup times (ms):\n" + report);
+    response.setPayload(report).send();
+  }
+
+  private void lap(String component) {
+    timings.put(component, stopwatch.elapsed(MILLISECONDS));
+    stopwatch.reset().start();
+  }
+}
@@ -0,0 +1,559 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest;
+
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.io.ByteStreams;
+import foo.domaintest.util.testutil.FakeServletInputStream;
+import foo.domaintest.util.testutil.TestEnvironment;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Unit tests for {@link RootServlet}. */
+@RunWith(MockitoJUnitRunner.class)
+public class RootServletTest {
+
+  @Rule public TestEnvironment env = new TestEnvironment(
+      new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig());
+
+  @Mock HttpServletRequest request;
+  @Mock HttpServletResponse response;
+
+  StringWriter writer = new StringWriter();
+  RootServlet servlet = new RootServlet();
+
+  @Before
+  public void before() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getInputStream()).thenReturn(new FakeServletInputStream(new byte[0]));
+    when(request.getContentLength()).thenReturn(-1);
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+  }
+
+  void setUrl(String path, String queryString) {
+    when(request.getRequestURI()).thenReturn(path);
+    when(request.getRequestURL()).thenReturn(new StringBuffer("http://testing.example" + path));
+    when(request.getQueryString()).thenReturn(queryString);
+  }
+
+  static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+      gzip.write(bytes);
+    }
+    return gzipped.toByteArray();
+  }
+
+  @Test
+  public void testEcho() throws Exception {
+    setUrl("/echo", "status=234&payload=foo");
+    servlet.service(request, response);
+    verify(response).setStatus(234);
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testTokenThenStashThenTemp() throws Exception {
+    setUrl("/token", null);
+    servlet.service(request, response);
+    String token = writer.toString();
+    writer.getBuffer().setLength(0);
+    setUrl("/stash", "payload=foo&token=" + token);
+    servlet.service(request, response);
+    assertEquals("http://testing.example/temp/" + token, writer.toString());
+    writer.getBuffer().setLength(0);
+    setUrl("/temp/" + token, null);
+    servlet.service(request, response);
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testServerTiming() throws Exception {
+    setUrl("/echo", "payload=foo&servertiming");
+    servlet.service(request, response);
+    verify(response).setHeader(eq("Server-Timing"), startsWith("inject;dur="));
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testPostBodyCharset() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getCharacterEncoding()).thenReturn("UTF-16BE");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream("payload=f%C3%B6%C3%B6".getBytes(UTF_16BE)));
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    assertEquals("f\u00f6\u00f6", writer.toString());
+  }
+
+  @Test
+  public void testPostPayloadIsStreamed() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(new byte[] {(byte) 0xff, 0, 'a'}));
+    setUrl("/echo", "postpayload&status=234&mime=a/b");
+    servlet.service(request, response);
+    verify(response).setStatus(234);
+    verify(response).setContentType("a/b");
+    assertArrayEquals(new byte[] {(byte) 0xff, 0, 'a'}, out.toByteArray());
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testStashBinaryPostPayloadThenTemp() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(new byte[] {(byte) 0xff, 0, 'a'}));
+    setUrl("/stash", "postpayload&mime=image/png");
+    servlet.service(request, response);
+    String tempUrl = writer.toString();
+    when(request.getMethod()).thenReturn("GET");
+    setUrl(tempUrl.replaceFirst("http://testing.example", ""), null);
+    servlet.service(request, response);
+    verify(response).setContentType("image/png");
+    verify(response).setContentLength(3);
+    assertArrayEquals(new byte[] {(byte) 0xff, 0, 'a'}, out.toByteArray());
+  }
+
+  @Test
+  public void testGzipResponse() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    String payload = new String(new char[2000]).replace('\0', 'a');
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    setUrl("/echo", "payload=" + payload);
+    servlet.service(request, response);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).addHeader("Vary", "Accept-Encoding");
+    assertEquals(payload, new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))), UTF_8));
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testGzipPostBody() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(gzip("payload=foo".getBytes(UTF_8))));
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testDeflatePostPayloadIsStreamed() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    byte[] body = new byte[] {(byte) 0xff, 0, 'a'};
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated)) {
+      deflater.write(body);
+    }
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("deflate");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(deflated.toByteArray()));
+    setUrl("/echo", "postpayload");
+    servlet.service(request, response);
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testGzipBomb() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(gzip(new byte[1 << 20])));
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).setStatus(413);
+    assertEquals("Request body expands too much", writer.toString());
+  }
+
+  @Test
+  public void testErrorWhileStreaming_beforeCommit() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    // The body is already being streamed, so the writer is off limits.
+    when(response.getWriter()).thenThrow(new IllegalStateException());
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(gzip(new byte[1 << 20])));
+    when(request.getHeader("Origin")).thenReturn("http://origin.example");
+    setUrl("/echo", "postpayload");
+    servlet.service(request, response);
+    // The echo response's headers are dropped, but the error still gets the CORS header.
+    InOrder inOrder = inOrder(response);
+    inOrder.verify(response).reset();
+    inOrder.verify(response).addHeader("Access-Control-Allow-Origin", "http://origin.example");
+    inOrder.verify(response).setStatus(413);
+    assertTrue(new String(out.toByteArray(), UTF_8).endsWith("Request body expands too much"));
+  }
+
+  @Test
+  public void testErrorWhileStreaming_afterCommit() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    // Pretend that the status and the start of the body went out as soon as it was written.
+    when(response.isCommitted()).thenAnswer(new Answer<Boolean>() {
+        @Override
+        public Boolean answer(InvocationOnMock invocation) {
+          return out.size() > 0;
+        }});
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(gzip(new byte[1 << 20])));
+    setUrl("/echo", "postpayload");
+    try {
+      servlet.service(request, response);
+      fail("Expected the committed response to be aborted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("413"));
+    }
+    verify(response, never()).setStatus(413);
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testTruncatedGzipPostBody() throws Exception {
+    byte[] body = gzip("payload=foo".getBytes(UTF_8));
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(Arrays.copyOf(body, body.length - 8)));
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).setStatus(400);
+    assertEquals("Invalid compressed request body", writer.toString());
+  }
+
+  @Test
+  public void testCorruptGzipPostPayload() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream("not gzip".getBytes(UTF_8)));
+    setUrl("/echo", "postpayload");
+    servlet.service(request, response);
+    verify(response).setStatus(400);
+    assertEquals("Invalid compressed request body", writer.toString());
+  }
+
+  @Test
+  public void testTruncatedDeflateStashPostPayload() throws Exception {
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated)) {
+      deflater.write("foo".getBytes(UTF_8));
+    }
+    byte[] body = deflated.toByteArray();
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("deflate");
+    when(request.getInputStream())
+        .thenReturn(new FakeServletInputStream(Arrays.copyOf(body, body.length - 6)));
+    setUrl("/stash", "postpayload");
+    servlet.service(request, response);
+    verify(response).setStatus(400);
+    assertEquals("Invalid compressed request body", writer.toString());
+  }
+
+  @Test
+  public void testUnsupportedContentEncoding() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Content-Encoding")).thenReturn("br");
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).setStatus(415);
+  }
+
+  @Test
+  public void testPostBodyTooLarge() throws Exception {
+    FakeServletInputStream body = new FakeServletInputStream(new byte[(256 << 10) + 1000]);
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getInputStream()).thenReturn(body);
+    setUrl("/stash", null);
+    servlet.service(request, response);
+    verify(response).setStatus(413);
+    assertEquals("Request body too large", writer.toString());
+    // Reading stopped at the limit.
+    assertEquals((256 << 10) + 1, body.getBytesRead());
+  }
+
+  @Test
+  public void testPostBodyTooLarge_contentLength() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getContentLength()).thenReturn(64 << 20);
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).setStatus(413);
+    assertEquals(0, ((FakeServletInputStream) request.getInputStream()).getBytesRead());
+  }
+
+  @Test
+  public void testHead() throws Exception {
+    when(request.getMethod()).thenReturn("HEAD");
+    setUrl("/echo", "status=234&payload=foo");
+    servlet.service(request, response);
+    verify(response).setStatus(234);
+    verify(response).setContentLength(3);
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testCorsPreflight() throws Exception {
+    when(request.getMethod()).thenReturn("OPTIONS");
+    when(request.getHeader("Origin")).thenReturn("http://origin.example");
+    when(request.getHeader("Access-Control-Request-Headers")).thenReturn("X-Foo, X-Bar");
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).addHeader("Access-Control-Allow-Origin", "http://origin.example");
+    verify(response).addHeader("Access-Control-Allow-Methods", "GET, HEAD, POST, OPTIONS");
+    verify(response).addHeader("Access-Control-Allow-Headers", "X-Foo, X-Bar");
+    verify(response).addHeader("Access-Control-Max-Age", "86400");
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+    setUrl("/token", null);
+    for (int i = 0; i < 10; i++) {
+      servlet.service(request, response);
+    }
+    verify(response, never()).setStatus(429);
+    writer.getBuffer().setLength(0);
+    servlet.service(request, response);
+    verify(response).setHeader(eq("Retry-After"), anyString());
+    verify(response).setStatus(429);
+    assertEquals("Rate limit exceeded", writer.toString());
+  }
+
+  @Test
+  public void testRateLimit_tokenRefusalDoesNotSpendIpLimit() throws Exception {
+    when(request.getRemoteAddr()).thenReturn("192.0.2.2");
+    // Exhaust the /temp limit (a burst of 20) for one token, from other addresses.
+    setUrl("/temp/sometoken", null);
+    for (int i = 0; i < 20; i++) {
+      when(request.getRemoteAddr()).thenReturn("198.51.100." + i);
+      servlet.service(request, response);
+    }
+    verify(response, never()).setStatus(429);
+    // Requests for that token from one address are all refused, but cost that address nothing.
+    when(request.getRemoteAddr()).thenReturn("192.0.2.2");
+    for (int i = 0; i < 20; i++) {
+      servlet.service(request, response);
+    }
+    verify(response, times(20)).setStatus(429);
+    setUrl("/temp/othertoken", null);
+    servlet.service(request, response);
+    verify(response, times(20)).setStatus(429);
+  }
+
+  /** Makes 20 requests from different addresses, which is /stash's burst for one token. */
+  void exhaustStashTokenLimit() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      when(request.getRemoteAddr()).thenReturn("203.0.113." + i);
+      servlet.service(request, response);
+    }
+    verify(response, never()).setStatus(429);
+    when(request.getRemoteAddr()).thenReturn("203.0.113.99");
+    servlet.service(request, response);
+    verify(response).setStatus(429);
+  }
+
+  @Test
+  public void testRateLimit_percentEncodedTokenName() throws Exception {
+    setUrl("/stash", "payload=foo&%74oken=encodedtoken");
+    exhaustStashTokenLimit();
+  }
+
+  @Test
+  public void testRateLimit_tokenInPostBody() throws Exception {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getInputStream()).thenAnswer(new Answer<ServletInputStream>() {
+        @Override
+        public ServletInputStream answer(InvocationOnMock invocation) {
+          return new FakeServletInputStream("payload=foo&token=bodytoken".getBytes(UTF_8));
+        }});
+    setUrl("/stash", null);
+    exhaustStashTokenLimit();
+  }
+
+  @Test
+  public void testRateLimit_malformedToken() throws Exception {
+    when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+    setUrl("/stash", "payload=foo&token=%zz");
+    servlet.service(request, response);
+    verify(response, never()).setStatus(429);
+    verify(response).setStatus(500);
+    assertEquals("Bad request", writer.toString());
+  }
+
+  @Test
+  public void testMalformedServerTiming() throws Exception {
+    setUrl("/echo", "payload=foo&servertiming=%zz");
+    servlet.service(request, response);
+    verify(response).setStatus(500);
+    assertEquals("Bad request", writer.toString());
+  }
+
+  @Test
+  public void testLanding() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    setUrl("/", null);
+    servlet.service(request, response);
+    verify(response).setHeader(eq("ETag"), startsWith("\""));
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    assertTrue(new String(out.toByteArray(), UTF_8)
+        .contains("<title>.example Domain Test service</title>"));
+  }
+
+  @Test
+  public void testLanding_gzip() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    setUrl("/", null);
+    servlet.service(request, response);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader(eq("ETag"), endsWith("-gzip\""));
+    assertTrue(new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))), UTF_8)
+            .contains("<title>.example Domain Test service</title>"));
+  }
+
+  @Test
+  public void testEchoNotModified() throws Exception {
+    setUrl("/echo", "payload=foo");
+    servlet.service(request, response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    assertEquals("foo", writer.toString());
+    writer.getBuffer().setLength(0);
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    servlet.service(request, response);
+    verify(response).setStatus(304);
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testWarmup() throws Exception {
+    setUrl("/_ah/warmup", null);
+    servlet.service(request, response);
+    assertTrue(writer.toString().contains("publicsuffix: "));
+  }
+
+  @Test
+  public void testNotFound() throws Exception {
+    setUrl("/nonexistent", null);
+    servlet.service(request, response);
+    verify(response).setStatus(404);
+    verify(response).setContentType("text/plain; charset=utf-8");
+    verify(response).setContentLength(9);
+    assertEquals("Not found", writer.toString());
+  }
+
+  @Test
+  public void testUnsupportedMethod() throws Exception {
+    when(request.getMethod()).thenReturn("PUT");
+    setUrl("/echo", null);
+    servlet.service(request, response);
+    verify(response).setStatus(501);
+    assertEquals("Unsupported method.", writer.toString());
+  }
+}
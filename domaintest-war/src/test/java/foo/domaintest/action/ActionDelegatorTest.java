@@ -16,14 +16,23 @@
 
 package foo.domaintest.action;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import foo.domaintest.action.Action.GetAction;
+import foo.domaintest.action.Action.PostAction;
 import foo.domaintest.action.annotation.ForPath;
 import foo.domaintest.action.annotation.NoMetrics;
+import foo.domaintest.action.annotation.RateLimit;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -31,34 +40,160 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public class ActionDelegatorTest {
 
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
   @ForPath("/foo/path")
-  static class FooAction implements Action {
+  static class FooAction implements GetAction, PostAction {
     @Override
     public void run() {}}
 
   @NoMetrics
   @ForPath("/bar/path/*")
-  static class BarAction implements Action {
+  @RateLimit(perMinute = 60, burst = 5)
+  static class BarAction implements PostAction {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar/path/{id}")
+  static class BarIdAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar/path/{id}/raw")
+  static class BarIdRawAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar/path/new")
+  static class NewBarAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar/*/{name}/{version}")
+  static class BarVersionAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar/path/{otherId}")
+  static class ConflictingBarIdAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/baz/{id}/{id}")
+  static class DuplicateVariableAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/")
+  static class RootAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/*")
+  static class CatchAllAction implements Action {
     @Override
     public void run() {}}
 
-  ActionDelegator delegator =
-      new ActionDelegator(ImmutableSet.of(FooAction.class, BarAction.class));
+  ActionDelegator delegator = new ActionDelegator(
+      ImmutableSet.<Class<? extends Action>>of(FooAction.class, BarAction.class));
+
+  Class<?> getActionClass(String path) {
+    return getActionClass(delegator, path);
+  }
+
+  Class<?> getActionClass(ActionDelegator actionDelegator, String path) {
+    return actionDelegator.getRegisteredAction(path).getActionClass();
+  }
 
   @Test
   public void testGetAction() {
-    assertTrue(delegator.getRegisteredAction("/foo/path").getAction() instanceof FooAction);
-    assertTrue(delegator.getRegisteredAction("/foo/path/").getAction() instanceof NotFoundAction);
-    assertTrue(
-        delegator.getRegisteredAction("/the/foo/path").getAction() instanceof NotFoundAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path/").getAction() instanceof BarAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path/baz").getAction() instanceof BarAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path/baz/").getAction() instanceof BarAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path/baz//").getAction() instanceof BarAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path/baz/qux").getAction() instanceof BarAction);
-    assertTrue(delegator.getRegisteredAction("/bar/path").getAction() instanceof NotFoundAction);
-    assertTrue(
-        delegator.getRegisteredAction("/the/bar/path/").getAction() instanceof NotFoundAction);
+    assertEquals(FooAction.class, getActionClass("/foo/path"));
+    assertEquals(NotFoundAction.class, getActionClass("/foo/path/"));
+    assertEquals(NotFoundAction.class, getActionClass("/the/foo/path"));
+    assertEquals(BarAction.class, getActionClass("/bar/path/"));
+    assertEquals(BarAction.class, getActionClass("/bar/path/baz"));
+    assertEquals(BarAction.class, getActionClass("/bar/path/baz/"));
+    assertEquals(BarAction.class, getActionClass("/bar/path/baz//"));
+    assertEquals(BarAction.class, getActionClass("/bar/path/baz/qux"));
+    assertEquals(NotFoundAction.class, getActionClass("/bar/path"));
+    assertEquals(NotFoundAction.class, getActionClass("/the/bar/path/"));
+  }
+
+  @Test
+  public void testRootAndCatchAll() {
+    ActionDelegator rootDelegator = new ActionDelegator(ImmutableSet.<Class<? extends Action>>of(
+        RootAction.class, CatchAllAction.class, FooAction.class));
+    assertEquals(RootAction.class, getActionClass(rootDelegator, "/"));
+    assertEquals(FooAction.class, getActionClass(rootDelegator, "/foo/path"));
+    assertEquals(CatchAllAction.class, getActionClass(rootDelegator, "/foo/path/"));
+    assertEquals(CatchAllAction.class, getActionClass(rootDelegator, "/baz"));
+    assertEquals(NotFoundAction.class, getActionClass(rootDelegator, "baz"));
+  }
+
+  @Test
+  public void testWildcardSegments() {
+    ActionDelegator wildcardDelegator = new ActionDelegator(
+        ImmutableSet.<Class<? extends Action>>of(
+            BarAction.class,
+            BarIdAction.class,
+            BarIdRawAction.class,
+            NewBarAction.class,
+            BarVersionAction.class));
+    // Literal segments beat variables, which beat trailing wildcards.
+    assertEquals(NewBarAction.class, getActionClass(wildcardDelegator, "/bar/path/new"));
+    assertEquals(BarIdAction.class, getActionClass(wildcardDelegator, "/bar/path/123"));
+    assertEquals(BarIdRawAction.class, getActionClass(wildcardDelegator, "/bar/path/123/raw"));
+    // Backtrack from the literal "new" branch to the variable when the literal one has no match.
+    assertEquals(BarIdRawAction.class, getActionClass(wildcardDelegator, "/bar/path/new/raw"));
+    // The first segment that differs decides, so "/bar/path/*" beats "/bar/*/{name}/{version}".
+    assertEquals(BarAction.class, getActionClass(wildcardDelegator, "/bar/path/123/4"));
+    assertEquals(BarVersionAction.class, getActionClass(wildcardDelegator, "/bar/baz/123/4"));
+    assertEquals(BarAction.class, getActionClass(wildcardDelegator, "/bar/path/123/5/6"));
+    assertEquals(BarAction.class, getActionClass(wildcardDelegator, "/bar/path/"));
+    assertEquals(BarAction.class, getActionClass(wildcardDelegator, "/bar/path/123/"));
+    assertEquals(NotFoundAction.class, getActionClass(wildcardDelegator, "/bar/x/y"));
+    assertEquals(NotFoundAction.class, getActionClass(wildcardDelegator, "/bar//y/z"));
+  }
+
+  @Test
+  public void testPathVariables() {
+    ActionDelegator wildcardDelegator = new ActionDelegator(
+        ImmutableSet.<Class<? extends Action>>of(BarIdRawAction.class, BarVersionAction.class));
+    assertEquals(
+        ImmutableMap.of("id", "123"),
+        wildcardDelegator.getRegisteredAction("/bar/path/123/raw")
+            .getPathVariables("/bar/path/123/raw"));
+    assertEquals(
+        ImmutableMap.of("name", "foo", "version", "2"),
+        wildcardDelegator.getRegisteredAction("/bar/baz/foo/2").getPathVariables("/bar/baz/foo/2"));
+    assertEquals(
+        ImmutableMap.of(),
+        delegator.getRegisteredAction("/bar/path/baz").getPathVariables("/bar/path/baz"));
+    assertEquals(ImmutableMap.of(), delegator.getRegisteredAction("").getPathVariables(""));
+  }
+
+  @Test
+  public void testConflictingPaths() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Conflicting paths: /bar/path/{id} and /bar/path/{otherId}");
+    new ActionDelegator(ImmutableSet.<Class<? extends Action>>of(
+        BarIdAction.class, ConflictingBarIdAction.class));
+  }
+
+  @Test
+  public void testDuplicatePaths() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Conflicting paths: /foo/path and /foo/path");
+    new ActionDelegator(
+        ImmutableList.<Class<? extends Action>>of(FooAction.class, FooAction.class));
+  }
+
+  @Test
+  public void testDuplicatePathVariables() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Duplicate path variable {id}: /baz/{id}/{id}");
+    new ActionDelegator(
+        ImmutableList.<Class<? extends Action>>of(DuplicateVariableAction.class));
   }
 
   @Test
@@ -66,4 +201,29 @@ public class ActionDelegatorTest {
     assertTrue(delegator.getRegisteredAction("/foo/path").isExportingMetrics());
     assertFalse(delegator.getRegisteredAction("/bar/path").isExportingMetrics());
   }
+
+  @Test
+  public void testAllowedMethods() {
+    assertEquals(
+        "GET, HEAD, POST, OPTIONS",
+        delegator.getRegisteredAction("/foo/path").getAllowedMethods());
+    assertEquals(
+        "POST, OPTIONS", delegator.getRegisteredAction("/bar/path/").getAllowedMethods());
+  }
+
+  @Test
+  public void testGetRateLimit() {
+    assertNull(delegator.getRegisteredAction("/foo/path").getRateLimit());
+    assertEquals(5, delegator.getRegisteredAction("/bar/path/").getRateLimit().burst());
+  }
+
+  @Test
+  public void testSupportedMethods() {
+    assertTrue(delegator.getRegisteredAction("/foo/path").isGetAction());
+    assertTrue(delegator.getRegisteredAction("/foo/path").isPostAction());
+    assertFalse(delegator.getRegisteredAction("/bar/path/").isGetAction());
+    assertTrue(delegator.getRegisteredAction("/bar/path/").isPostAction());
+    assertTrue(delegator.getRegisteredAction("/unregistered").isGetAction());
+    assertTrue(delegator.getRegisteredAction("/unregistered").isPostAction());
+  }
 }
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import foo.domaintest.action.ActionDelegator.RegisteredAction;
+import foo.domaintest.action.HttpErrorException.ServiceUnavailableException;
+import foo.domaintest.action.annotation.ForPath;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AdmissionController}. */
+@RunWith(JUnit4.class)
+public class AdmissionControllerTest {
+
+  @ForPath("/foo")
+  static class FooAction implements Action {
+    @Override
+    public void run() {}}
+
+  @ForPath("/bar")
+  static class BarAction implements Action {
+    @Override
+    public void run() {}}
+
+  RegisteredAction foo = new RegisteredAction(FooAction.class);
+  RegisteredAction bar = new RegisteredAction(BarAction.class);
+
+  @Test
+  public void testInFlightLimit() {
+    AdmissionController controller = new AdmissionController(3, 3, 1, 1.0);
+    assertTrue(controller.tryAdmit(foo, false));
+    assertTrue(controller.tryAdmit(bar, false));
+    assertTrue(controller.tryAdmit(bar, false));
+    assertFalse(controller.tryAdmit(foo, false));
+    assertEquals(3, controller.getInFlight());
+    controller.release(bar);
+    assertTrue(controller.tryAdmit(foo, false));
+  }
+
+  @Test
+  public void testPerActionLimit() {
+    AdmissionController controller = new AdmissionController(3, 2, 1, 1.0);
+    assertTrue(controller.tryAdmit(foo, false));
+    assertTrue(controller.tryAdmit(foo, false));
+    assertFalse(controller.tryAdmit(foo, false));
+    // Another action still gets in.
+    assertTrue(controller.tryAdmit(bar, false));
+    assertEquals(3, controller.getInFlight());
+  }
+
+  @Test
+  public void testSleepLimit() {
+    AdmissionController controller = new AdmissionController(10, 10, 2, 1.0);
+    controller.admitSleep();
+    controller.admitSleep();
+    assertShed(controller);
+    controller.releaseSleep();
+    controller.admitSleep();
+    assertEquals(2, controller.getSleeping());
+  }
+
+  @Test
+  public void testSleepsShedBeforeCheapRequests() {
+    AdmissionController controller = new AdmissionController(4, 4, 10, 1.0);
+    assertTrue(controller.tryAdmit(foo, false));
+    assertTrue(controller.tryAdmit(foo, false));
+    controller.admitSleep();
+    assertTrue(controller.tryAdmit(foo, false));
+    // More than half the in-flight limit is used, so sleeps are shed while cheap requests aren't.
+    assertShed(controller);
+    assertEquals(1, controller.getSleeping());
+    assertTrue(controller.tryAdmit(foo, false));
+  }
+
+  @Test
+  public void testLowHeap() {
+    // No heap is ever small enough to have nothing in use.
+    AdmissionController controller = new AdmissionController(10, 10, 10, 0.0);
+    assertTrue(controller.isHeapLow());
+    assertTrue(controller.tryAdmit(foo, false));
+    assertFalse(controller.tryAdmit(foo, true));
+    assertShed(controller);
+    assertEquals(1, controller.getInFlight());
+  }
+
+  private static void assertShed(AdmissionController controller) {
+    try {
+      controller.admitSleep();
+      fail();
+    } catch (ServiceUnavailableException e) {
+      assertEquals(503, e.getResponseCode());
+      assertEquals(AdmissionController.RETRY_AFTER_SECONDS, e.getRetryAfterSeconds());
+    }
+  }
+}
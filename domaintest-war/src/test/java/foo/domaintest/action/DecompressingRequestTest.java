@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import com.google.common.io.CharStreams;
+import foo.domaintest.util.testutil.FakeServletInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/** Unit tests for {@link DecompressingRequest}. */
+@RunWith(MockitoJUnitRunner.class)
+public class DecompressingRequestTest {
+
+  @Mock HttpServletRequest request;
+
+  @Before
+  public void before() {
+    when(request.getHeader("Content-Encoding")).thenReturn("gzip");
+  }
+
+  private void setBody(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body);
+    }
+    when(request.getInputStream()).thenReturn(new FakeServletInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void testGetReader() throws Exception {
+    setBody("caf\u00e9".getBytes(UTF_16BE));
+    when(request.getCharacterEncoding()).thenReturn("UTF-16BE");
+    assertEquals("caf\u00e9", CharStreams.toString(DecompressingRequest.wrap(request).getReader()));
+  }
+
+  @Test
+  public void testGetReader_defaultCharset() throws Exception {
+    setBody(new byte[] {'c', 'a', 'f', (byte) 0xe9});
+    assertEquals("caf\u00e9", CharStreams.toString(DecompressingRequest.wrap(request).getReader()));
+  }
+
+  @Test
+  public void testGetReader_unsupportedCharset() throws Exception {
+    setBody("foo".getBytes(UTF_8));
+    when(request.getCharacterEncoding()).thenReturn("no-such-charset");
+    try {
+      DecompressingRequest.wrap(request).getReader();
+      fail("Expected UnsupportedEncodingException");
+    } catch (UnsupportedEncodingException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testGetReader_afterGetInputStream() throws Exception {
+    setBody("foo".getBytes(UTF_8));
+    HttpServletRequest decompressing = DecompressingRequest.wrap(request);
+    decompressing.getInputStream();
+    try {
+      decompressing.getReader();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import foo.domaintest.action.HttpErrorException.BadRequestException;
+import foo.domaintest.action.HttpErrorException.NotFoundException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link HttpErrorException}. */
+@RunWith(JUnit4.class)
+public class HttpErrorExceptionTest {
+
+  @Test
+  public void testNoStackTrace() {
+    NotFoundException e = new NotFoundException("Not found");
+    assertEquals(0, e.getStackTrace().length);
+    assertEquals(404, e.getResponseCode());
+    assertEquals("Not found", e.getMessage());
+  }
+
+  @Test
+  public void testCauseKeepsStackTrace() {
+    IllegalArgumentException cause = new IllegalArgumentException();
+    BadRequestException e = new BadRequestException("Bad", cause);
+    assertSame(cause, e.getCause());
+    assertEquals(0, e.getStackTrace().length);
+    assertEquals(0, e.getSuppressed().length);
+    assertEquals(getClass().getName(), cause.getStackTrace()[0].getClassName());
+  }
+}
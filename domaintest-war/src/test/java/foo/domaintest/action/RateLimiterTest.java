@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import foo.domaintest.action.annotation.RateLimit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RateLimiter}. */
+@RunWith(JUnit4.class)
+public class RateLimiterTest {
+
+  @RateLimit(perMinute = 1, burst = 3)
+  static class Limited {}
+
+  RateLimit limit = Limited.class.getAnnotation(RateLimit.class);
+  RateLimiter limiter = new RateLimiter(1024);
+
+  @Test
+  public void testBurstThenLimited() {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.tryAcquire("foo", limit));
+    }
+    int retryAfterSeconds = limiter.tryAcquire("foo", limit);
+    // The next token is a minute away, less however long this test has taken so far.
+    assertTrue(String.valueOf(retryAfterSeconds), retryAfterSeconds > 50);
+    assertTrue(String.valueOf(retryAfterSeconds), retryAfterSeconds <= 60);
+  }
+
+  @Test
+  public void testKeysAreIndependent() {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.tryAcquire("foo", limit));
+    }
+    assertTrue(limiter.tryAcquire("foo", limit) > 0);
+    assertEquals(0, limiter.tryAcquire("bar", limit));
+  }
+
+  @Test
+  public void testRelease() {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.tryAcquire("foo", limit));
+    }
+    assertTrue(limiter.tryAcquire("foo", limit) > 0);
+    limiter.release("foo", limit);
+    assertEquals(0, limiter.tryAcquire("foo", limit));
+    assertTrue(limiter.tryAcquire("foo", limit) > 0);
+  }
+
+  @Test
+  public void testRelease_idleBucket() {
+    limiter.release("foo", limit);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.tryAcquire("foo", limit));
+    }
+    assertTrue(limiter.tryAcquire("foo", limit) > 0);
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    RateLimit fastLimit = new RateLimit() {
+        @Override
+        public int perMinute() {
+          return 600;  // One every 100 milliseconds.
+        }
+
+        @Override
+        public int burst() {
+          return 1;
+        }
+
+        @Override
+        public Class<RateLimit> annotationType() {
+          return RateLimit.class;
+        }};
+    assertEquals(0, limiter.tryAcquire("foo", fastLimit));
+    assertEquals(1, limiter.tryAcquire("foo", fastLimit));
+    Thread.sleep(150);
+    assertEquals(0, limiter.tryAcquire("foo", fastLimit));
+  }
+
+  @Test
+  public void testUnlimited() {
+    for (int i = 0; i < 10; i++) {
+      assertEquals(0, RateLimiter.UNLIMITED.tryAcquire("foo", limit));
+    }
+  }
+}
@@ -16,29 +16,52 @@
 
 package foo.domaintest.action;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+import com.google.common.io.ByteStreams;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
 import foo.domaintest.metrics.Metrics;
-import foo.domaintest.util.Sleeper;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.util.testutil.FakeSleeper;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
@@ -51,17 +74,48 @@ public class ResponseTest {
   StringWriter writer = new StringWriter();
 
   @Mock HttpServletResponse servletResponse;
-  @Mock Sleeper sleeper;
   @Mock Metrics metrics;
 
+  FakeSleeper sleeper = new FakeSleeper();
   Response response;
 
   @Before
   public void before() throws Exception {
-    response = new Response(sleeper, servletResponse, metrics);
+    response = newResponse(null, null, null);
     when(servletResponse.getWriter()).thenReturn(new PrintWriter(writer));
   }
 
+  /** Returns a response to a request with the given request headers, any of which may be null. */
+  Response newResponse(String acceptEncoding, String ifNoneMatch, String range) {
+    return new Response(
+        sleeper, servletResponse, acceptEncoding, ifNoneMatch, range, metrics, PhaseTimer.DISABLED);
+  }
+
+  /** Returns a response for a client that accepts gzip. */
+  Response gzipResponse() {
+    return newResponse("gzip, deflate", null, null);
+  }
+
+  /** Returns a response to a request with the given If-None-Match header. */
+  Response conditionalResponse(String ifNoneMatch) {
+    return newResponse(null, ifNoneMatch, null);
+  }
+
+  /** Captures whatever is written to the servlet response's output stream. */
+  ByteArrayOutputStream captureOutput() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    return out;
+  }
+
+  static byte[] gunzip(byte[] bytes) throws IOException {
+    return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+  }
+
   Cookie cookie(final String name, final String value, final int age) {
     return argThat(new ArgumentMatcher<Cookie>() {
       @Override
@@ -87,9 +141,10 @@ public class ResponseTest {
         .setHeaders(ImmutableMap.of("aa", "bb", "cc", ""))
         .setPayload("foo")
         .send();
-    verify(sleeper).sleep(6);
+    assertEquals(Integer.valueOf(6), sleeper.getSleepSeconds());
     verify(servletResponse).setStatus(234);
     verify(servletResponse).setContentType("a/b");
+    verify(servletResponse).setContentLength(3);
     verify(servletResponse).addCookie(cookie("x", "", 0));
     verify(servletResponse).addCookie(cookie("y", "", 0));
     verify(servletResponse).addCookie(cookie("j", "k", -1));
@@ -100,10 +155,405 @@ public class ResponseTest {
     assertEquals("foo", writer.toString());
   }
 
+  @Test
+  public void testPayloadStream() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    byte[] body = new byte[20000];
+    new Random(0).nextBytes(body);
+    response
+        .setStatus(234)
+        .setMimeType("a/b")
+        .setHeaders(ImmutableMap.of("aa", "bb"))
+        .setPayloadStream(new ByteArrayInputStream(body))
+        .send();
+    verify(servletResponse).setStatus(234);
+    verify(servletResponse).setContentType("a/b");
+    verify(servletResponse).addHeader("aa", "bb");
+    verify(servletResponse, never()).getWriter();
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testPayloadBytes() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          out.write(b);
+        }});
+    byte[] body = new byte[] {(byte) 0xff, 0, 'a'};
+    response.setMimeType("a/b").setPayloadBytes(body).send();
+    verify(servletResponse).setContentType("a/b");
+    verify(servletResponse).setContentLength(3);
+    verify(servletResponse, never()).getWriter();
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testGzipPayload() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    String payload = new String(new char[2000]).replace('\0', 'a');
+    response = gzipResponse();
+    response.setPayload(payload).send();
+    verify(servletResponse).setHeader("Content-Encoding", "gzip");
+    verify(servletResponse).addHeader("Vary", "Accept-Encoding");
+    verify(servletResponse).setContentLength(out.size());
+    verify(servletResponse, never()).getWriter();
+    assertTrue(out.size() < 100);
+    assertEquals(payload, new String(gunzip(out.toByteArray()), "ISO-8859-1"));
+  }
+
+  @Test
+  public void testGzip_notAccepted() throws Exception {
+    String payload = new String(new char[2000]).replace('\0', 'a');
+    response.setPayload(payload).send();
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(servletResponse).addHeader("Vary", "Accept-Encoding");
+    verify(servletResponse).setContentLength(2000);
+    assertEquals(payload, writer.toString());
+  }
+
+  @Test
+  public void testGzip_smallPayloadIsSentAsIs() throws Exception {
+    response = gzipResponse();
+    response.setPayload("foo").send();
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(servletResponse, never()).addHeader(eq("Vary"), anyString());
+    verify(servletResponse).setContentLength(3);
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testGzip_callerContentEncodingIsKept() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    byte[] body = new byte[2000];
+    response = gzipResponse();
+    response
+        .setHeaders(ImmutableMap.of("content-encoding", "identity"))
+        .setPayloadBytes(body)
+        .send();
+    verify(servletResponse).addHeader("content-encoding", "identity");
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(servletResponse, never()).addHeader(eq("Vary"), anyString());
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testGzip_incompressibleBytesAreSentAsIs() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    byte[] body = new byte[2000];
+    new Random(0).nextBytes(body);
+    response = gzipResponse();
+    response.setPayloadBytes(body).send();
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(servletResponse).addHeader("Vary", "Accept-Encoding");
+    verify(servletResponse).setContentLength(2000);
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testGzip_precompressedBytes() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    byte[] body = new String(new char[2000]).replace('\0', 'a').getBytes("UTF-8");
+    byte[] gzipped = Response.gzip(body);
+    response = gzipResponse();
+    response.setPayloadBytes(body, gzipped).send();
+    verify(servletResponse).setHeader("Content-Encoding", "gzip");
+    verify(servletResponse).setContentLength(gzipped.length);
+    assertArrayEquals(gzipped, out.toByteArray());
+  }
+
+  @Test
+  public void testGzip_payloadStream() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    byte[] body = new byte[20000];
+    Arrays.fill(body, (byte) 'x');
+    response = gzipResponse();
+    response.setPayloadStream(new ByteArrayInputStream(body)).send();
+    verify(servletResponse).setHeader("Content-Encoding", "gzip");
+    verify(servletResponse).addHeader("Vary", "Accept-Encoding");
+    verify(servletResponse, never()).setContentLength(anyInt());
+    assertArrayEquals(body, gunzip(out.toByteArray()));
+  }
+
+  @Test
+  public void testGzip_shortPayloadStreamIsSentAsIs() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    byte[] body = new byte[] {1, 2, 3};
+    response = gzipResponse();
+    response.setPayloadStream(new ByteArrayInputStream(body)).send();
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(servletResponse).setContentLength(3);
+    assertArrayEquals(body, out.toByteArray());
+  }
+
+  @Test
+  public void testEtag() throws Exception {
+    captureOutput();
+    response.setEtag("\"abc\"").setPayloadBytes(new byte[2000]).send();
+    verify(servletResponse).setHeader("ETag", "\"abc\"");
+    verify(servletResponse, never()).setHeader(eq("ETag"), eq("\"abc-gzip\""));
+  }
+
+  @Test
+  public void testEtag_gzip() throws Exception {
+    captureOutput();
+    response = gzipResponse();
+    response.setEtag("\"abc\"").setPayloadBytes(new byte[2000]).send();
+    verify(servletResponse).setHeader("Content-Encoding", "gzip");
+    verify(servletResponse).setHeader("ETag", "\"abc-gzip\"");
+  }
+
+  @Test
+  public void testConditional_computesEtag() throws Exception {
+    response.setConditional(true).setPayload("foo").send();
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(servletResponse).setHeader(eq("ETag"), etag.capture());
+    verify(servletResponse).setStatus(200);
+    assertTrue(etag.getValue().matches("\"[0-9a-f]{32}\""));
+    assertEquals("foo", writer.toString());
+
+    // The same response gets the same tag, and a different one gets a different tag.
+    Response same = conditionalResponse(null);
+    same.setConditional(true).setPayload("foo").send();
+    verify(servletResponse, times(2)).setHeader("ETag", etag.getValue());
+    Response other = conditionalResponse(null);
+    other.setConditional(true).setMimeType("a/b").setPayload("foo").send();
+    verify(servletResponse, times(3)).setHeader(eq("ETag"), anyString());
+    verify(servletResponse, times(2)).setHeader("ETag", etag.getValue());
+  }
+
+  @Test
+  public void testConditional_notModified() throws Exception {
+    response.setConditional(true).setPayload("foo").send();
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(servletResponse).setHeader(eq("ETag"), etag.capture());
+    writer.getBuffer().setLength(0);
+    response = conditionalResponse("\"other\", " + etag.getValue());
+    response.setConditional(true).setPayload("foo").send();
+    verify(servletResponse).setStatus(304);
+    verify(servletResponse, times(2)).setHeader("ETag", etag.getValue());
+    verify(servletResponse).setContentType(anyString());
+    verify(servletResponse).setContentLength(anyInt());
+    verify(metrics).setResponseCode(304);
+    verify(metrics).addActivity("not_modified");
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testConditional_explicitEtag() throws Exception {
+    response = conditionalResponse("W/\"abc\"");
+    response.setEtag("\"abc\"").setPayload("foo").send();
+    verify(servletResponse).setStatus(304);
+    verify(servletResponse).setHeader("ETag", "\"abc\"");
+    assertEquals("", writer.toString());
+  }
+
+  @Test
+  public void testConditional_gzipEtag() throws Exception {
+    response = conditionalResponse("\"abc-gzip\"");
+    response.setEtag("\"abc\"").setPayload("foo").send();
+    verify(servletResponse).setStatus(304);
+    verify(servletResponse).setHeader("ETag", "\"abc-gzip\"");
+  }
+
+  @Test
+  public void testConditional_notWithoutEtag() throws Exception {
+    response = conditionalResponse("*");
+    response.setPayload("foo").send();
+    verify(servletResponse).setStatus(200);
+    verify(servletResponse, never()).setHeader(eq("ETag"), anyString());
+    assertEquals("foo", writer.toString());
+  }
+
+  @Test
+  public void testConditional_notWithCookies() throws Exception {
+    response = conditionalResponse("*");
+    response.setConditional(true).setCookiesToAdd(ImmutableMap.of("a", "b")).send();
+    verify(servletResponse).setStatus(200);
+    verify(servletResponse, never()).setHeader(eq("ETag"), anyString());
+  }
+
+  @Test
+  public void testConditional_notWithSleep() throws Exception {
+    response = conditionalResponse("*");
+    response.setConditional(true).setSleepSeconds(1).send();
+    verify(servletResponse).setStatus(200);
+    verify(servletResponse, never()).setHeader(eq("ETag"), anyString());
+  }
+
+  @Test
+  public void testConditional_notForErrors() throws Exception {
+    response = conditionalResponse("*");
+    response.setConditional(true).setStatus(404).send();
+    verify(servletResponse).setStatus(404);
+  }
+
+  @Test
+  public void testConditional_callerEtagHeaderIsKept() throws Exception {
+    response = conditionalResponse("*");
+    response.setConditional(true).setHeaders(ImmutableMap.of("ETag", "\"mine\"")).send();
+    verify(servletResponse).setStatus(200);
+    verify(servletResponse).addHeader("ETag", "\"mine\"");
+    verify(servletResponse, never()).setHeader(eq("ETag"), anyString());
+  }
+
+  @Test
+  public void testFindMatchingEtag() {
+    assertEquals("\"a\"", Response.findMatchingEtag("\"a\"", "\"a\""));
+    assertEquals("\"a\"", Response.findMatchingEtag("\"b\", W/\"a\"", "\"a\""));
+    assertEquals("\"a\"", Response.findMatchingEtag("*", "\"a\""));
+    assertEquals("\"a-gzip\"", Response.findMatchingEtag("\"a-gzip\"", "\"a\""));
+    assertNull(Response.findMatchingEtag("\"b\"", "\"a\""));
+    assertNull(Response.findMatchingEtag("\"a\"", null));
+    assertNull(Response.findMatchingEtag(null, "\"a\""));
+  }
+
+  @Test
+  public void testRange_single() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    response = newResponse(null, null, "bytes=2-4");
+    response.setPayload("0123456789").send();
+    verify(servletResponse).setStatus(206);
+    verify(servletResponse).setHeader("Accept-Ranges", "bytes");
+    verify(servletResponse).setHeader("Content-Range", "bytes 2-4/10");
+    verify(servletResponse).setContentLength(3);
+    verify(metrics).setResponseCode(206);
+    assertEquals("234", out.toString("UTF-8"));
+    assertFalse(response.servedFinalByte());
+  }
+
+  @Test
+  public void testRange_suffix() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    response = newResponse(null, null, "bytes=-3");
+    response.setPayloadBytes("0123456789".getBytes("UTF-8")).send();
+    verify(servletResponse).setStatus(206);
+    verify(servletResponse).setHeader("Content-Range", "bytes 7-9/10");
+    assertEquals("789", out.toString("UTF-8"));
+    assertTrue(response.servedFinalByte());
+  }
+
+  @Test
+  public void testRange_multiple() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    response = newResponse(null, null, "bytes=0-1, 8-");
+    response.setMimeType("a/b").setPayload("0123456789").send();
+    verify(servletResponse).setStatus(206);
+    ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+    verify(servletResponse, atLeastOnce()).setContentType(contentType.capture());
+    assertEquals("a/b", contentType.getAllValues().get(0));
+    String boundary =
+        contentType.getValue().replaceFirst("^multipart/byteranges; boundary=", "");
+    assertFalse(boundary.equals(contentType.getValue()));
+    verify(servletResponse).setContentLength(out.size());
+    assertEquals(
+        "\r\n--" + boundary + "\r\n"
+            + "Content-Type: a/b\r\nContent-Range: bytes 0-1/10\r\n\r\n01"
+            + "\r\n--" + boundary + "\r\n"
+            + "Content-Type: a/b\r\nContent-Range: bytes 8-9/10\r\n\r\n89"
+            + "\r\n--" + boundary + "--\r\n",
+        out.toString("UTF-8"));
+    assertTrue(response.servedFinalByte());
+  }
+
+  @Test
+  public void testRange_unsatisfiable() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    response = newResponse(null, null, "bytes=10-");
+    response.setPayload("0123456789").send();
+    verify(servletResponse).setStatus(416);
+    verify(servletResponse).setHeader("Content-Range", "bytes */10");
+    verify(servletResponse).setContentLength(0);
+    assertEquals(0, out.size());
+    assertFalse(response.servedFinalByte());
+  }
+
+  @Test
+  public void testRange_invalidIsIgnored() throws Exception {
+    response = newResponse(null, null, "bytes=5-2");
+    response.setPayload("0123456789").send();
+    verify(servletResponse).setStatus(200);
+    assertEquals("0123456789", writer.toString());
+    assertTrue(response.servedFinalByte());
+  }
+
+  @Test
+  public void testRange_notForErrors() throws Exception {
+    response = newResponse(null, null, "bytes=0-1");
+    response.setStatus(404).setPayload("0123456789").send();
+    verify(servletResponse).setStatus(404);
+    verify(servletResponse, never()).setHeader(eq("Accept-Ranges"), anyString());
+    assertEquals("0123456789", writer.toString());
+  }
+
+  @Test
+  public void testRange_notGzipped() throws Exception {
+    ByteArrayOutputStream out = captureOutput();
+    response = newResponse("gzip", null, "bytes=0-1999");
+    response.setPayloadBytes(new byte[3000]).send();
+    verify(servletResponse).setStatus(206);
+    verify(servletResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    assertEquals(2000, out.size());
+  }
+
+  @Test
+  public void testParseRanges() {
+    assertEquals(
+        ImmutableList.of(Range.closed(0, 4)), Response.parseRanges("bytes=0-4", 10));
+    assertEquals(
+        ImmutableList.of(Range.closed(5, 9)), Response.parseRanges("BYTES=5-", 10));
+    assertEquals(
+        ImmutableList.of(Range.closed(5, 9)), Response.parseRanges("bytes=5-100", 10));
+    assertEquals(
+        ImmutableList.of(Range.closed(0, 9)), Response.parseRanges("bytes=-100", 10));
+    assertEquals(
+        ImmutableList.of(Range.closed(0, 0), Range.closed(9, 9)),
+        Response.parseRanges("bytes= 0-0 , -1", 10));
+    assertEquals(
+        ImmutableList.of(Range.closed(1, 9)),
+        Response.parseRanges("bytes=1-99999999999999999999999", 10));
+    // Unsatisfiable ranges are dropped.
+    assertEquals(ImmutableList.of(), Response.parseRanges("bytes=10-", 10));
+    assertEquals(ImmutableList.of(), Response.parseRanges("bytes=-0", 10));
+    assertEquals(ImmutableList.of(), Response.parseRanges("bytes=-1", 0));
+    assertEquals(
+        ImmutableList.of(Range.closed(2, 3)), Response.parseRanges("bytes=20-30,2-3", 10));
+    // Invalid headers are ignored.
+    assertNull(Response.parseRanges("items=0-1", 10));
+    assertNull(Response.parseRanges("bytes=", 10));
+    assertNull(Response.parseRanges("bytes=-", 10));
+    assertNull(Response.parseRanges("bytes=3-2", 10));
+    assertNull(Response.parseRanges("bytes=a-b", 10));
+    String tooManyRanges = "bytes=" + new String(new char[17]).replace("\0", "0-0,");
+    assertNull(Response.parseRanges(tooManyRanges, 10));
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(Response.acceptsGzip("gzip"));
+    assertTrue(Response.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(Response.acceptsGzip("x-gzip"));
+    assertTrue(Response.acceptsGzip("*"));
+    assertTrue(Response.acceptsGzip("br;q=0, *;q=0.1"));
+    assertFalse(Response.acceptsGzip(null));
+    assertFalse(Response.acceptsGzip(""));
+    assertFalse(Response.acceptsGzip("identity"));
+    assertFalse(Response.acceptsGzip("gzip;q=0"));
+    assertFalse(Response.acceptsGzip("gzip; q=0.000"));
+    assertFalse(Response.acceptsGzip("gzip;q=0, *"));
+    assertFalse(Response.acceptsGzip("*;q=0"));
+  }
+
   @Test
   public void testDefaults() {
     response.send();
-    verify(sleeper).sleep(0);
+    assertEquals(Integer.valueOf(0), sleeper.getSleepSeconds());
     verify(servletResponse).setStatus(200);
     verify(servletResponse).setContentType("text/plain; charset=utf-8");
     assertEquals("", writer.toString());
@@ -148,4 +598,26 @@ public class ResponseTest {
     verify(servletResponse).setHeader("Connection", "close");
     assertEquals("", writer.toString());
   }
+
+  @Test
+  public void testInvalidRedirectFailsBeforeSleeping() {
+    try {
+      response.setStatus(301).setSleepSeconds(10).setPayload("not a url").send();
+      fail();
+    } catch (BadRequestException e) {
+      assertNull(sleeper.getSleepSeconds());
+      verify(servletResponse, never()).setStatus(anyInt());
+    }
+  }
+
+  @Test
+  public void testIllegalCookieFailsBeforeSleeping() {
+    try {
+      response.setSleepSeconds(10).setCookiesToAdd(ImmutableMap.of("bad name", "x")).send();
+      fail();
+    } catch (BadRequestException e) {
+      assertNull(sleeper.getSleepSeconds());
+      verify(servletResponse, never()).addCookie(any(Cookie.class));
+    }
+  }
 }
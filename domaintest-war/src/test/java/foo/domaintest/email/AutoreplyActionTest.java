@@ -26,6 +26,7 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
 import foo.domaintest.util.TempUrlFactory;
@@ -51,7 +52,7 @@ public class AutoreplyActionTest {
   @Mock Emailer emailer;
 
   AutoreplyAction action = new AutoreplyAction();
-  Memcache memcache = new Memcache(null, mock(Metrics.class));
+  Memcache memcache = new Memcache(null, mock(Metrics.class), PhaseTimer.DISABLED);
 
   @Before
   public void before() {
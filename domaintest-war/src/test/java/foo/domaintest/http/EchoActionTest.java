@@ -16,6 +16,8 @@
 
 package foo.domaintest.http;
 
+import static foo.domaintest.util.testutil.LazyFactory.lazy;
+import static foo.domaintest.util.testutil.LazyFactory.throwingLazy;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -27,6 +29,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
 /** Unit tests for {@link EchoAction}. */
 @RunWith(JUnit4.class)
 public class EchoActionTest {
@@ -42,7 +47,7 @@ public class EchoActionTest {
     action.cookiesToDelete = ImmutableList.of("x", "y");
     action.cookiesToAdd = ImmutableMap.of("j", "k", "m", "");
     action.headers = ImmutableMap.of("aa", "bb", "cc", "");
-    action.payload = "foo";
+    action.payload = lazy("foo");
     action.run();
     assertEquals(
         new FakeResponse()
@@ -52,8 +57,33 @@ public class EchoActionTest {
             .setCookiesToDelete(ImmutableList.of("x", "y"))
             .setCookiesToAdd(ImmutableMap.of("j", "k", "m", ""))
             .setHeaders(ImmutableMap.of("aa", "bb", "cc", ""))
+            .setConditional(true)
             .setPayload("foo"),
         action.response);
     assertTrue(((FakeResponse) action.response).isResponseSent());
   }
+
+  @Test
+  public void testEcho_streamsPostPayload() {
+    InputStream postPayloadStream = new ByteArrayInputStream(new byte[] {1, 2, 3});
+    action.response = new FakeResponse();
+    action.payload = throwingLazy();  // The body shouldn't be read as a string.
+    action.postPayloadStream = postPayloadStream;
+    action.run();
+    assertEquals(
+        new FakeResponse().setConditional(true).setPayloadStream(postPayloadStream),
+        action.response);
+  }
+
+  @Test
+  public void testEcho_redirectDoesNotStreamPostPayload() {
+    action.response = new FakeResponse();
+    action.status = 302;
+    action.payload = lazy("http://example.com");
+    action.postPayloadStream = new ByteArrayInputStream(new byte[0]);
+    action.run();
+    assertEquals(
+        new FakeResponse().setStatus(302).setConditional(true).setPayload("http://example.com"),
+        action.response);
+  }
 }
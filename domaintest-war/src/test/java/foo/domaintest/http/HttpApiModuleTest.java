@@ -20,31 +20,48 @@ import static foo.domaintest.util.testutil.LazyFactory.lazy;
 import static java.nio.charset.StandardCharsets.UTF_16;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ForwardingIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
+import foo.domaintest.action.HttpErrorException.PayloadTooLargeException;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.util.testutil.FakeServletInputStream;
 import foo.domaintest.util.testutil.LazyFactory;
 
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import javax.servlet.http.HttpServletRequest;
+
 /** Unit tests for {@link HttpApiModule}. */
 @RunWith(JUnit4.class)
 public class HttpApiModuleTest {
 
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
   HttpApiModule module = new HttpApiModule();
   Multimap<String, String> params = LinkedListMultimap.create();
 
@@ -63,82 +80,189 @@ public class HttpApiModuleTest {
       return delegate;
     }}
 
+  /** Returns params that are all in the POST body, which is the worst case for laziness. */
+  RequestParameters parameters() {
+    return new RequestParameters("", lazy(new RequestParameters.Body(params)), PhaseTimer.DISABLED);
+  }
+
+  /** Returns the values that {@code parameters} has for each of the names in {@code expected}. */
+  static Multimap<String, String> lookUp(
+      RequestParameters parameters, Multimap<String, String> expected) {
+    Multimap<String, String> actual = LinkedListMultimap.create();
+    for (String name : expected.keySet()) {
+      actual.putAll(name, parameters.getValues(name));
+    }
+    return actual;
+  }
+
   FileItemStream createItem(String name, String value, boolean isFormField) throws Exception {
+    // Use UTF_16 and specify it to provideParameterMap to make sure we honor the request encoding.
+    return createItem(name, value.getBytes(UTF_16), isFormField);
+  }
+
+  FileItemStream createItem(String name, byte[] bytes, boolean isFormField) throws Exception {
     FileItemStream item = mock(FileItemStream.class);
     when(item.isFormField()).thenReturn(isFormField);
     when(isFormField ? item.getFieldName() : item.getName()).thenReturn(name);
-    // Use UTF_16 and specify it to provideParameterMap to make sure we honor the request encoding.
-    when(item.openStream()).thenReturn(new ByteArrayInputStream(value.getBytes(UTF_16)));
+    when(item.openStream()).thenReturn(new ByteArrayInputStream(bytes));
     return item;
   }
 
   @Test
   public void testProvideStatus() {
-    assertNull(module.provideStatus(params, null));
+    assertNull(module.provideStatus(parameters(), null));
     params.put("status", "foo");
-    assertNull(module.provideStatus(params, null));
+    assertNull(module.provideStatus(parameters(), null));
     params.removeAll("status");
     params.put("status", "123");
-    assertEquals(123, (int) module.provideStatus(params, null));
-    assertEquals(302, (int) module.provideStatus(params, "foo"));
+    assertEquals(123, (int) module.provideStatus(parameters(), null));
+    assertEquals(302, (int) module.provideStatus(parameters(), "foo"));
   }
 
   @Test
   public void testProvideSleep() {
-    assertNull(module.provideSleep(params));
+    assertNull(module.provideSleep(parameters()));
     params.put("sleep", "foo");
-    assertNull(module.provideSleep(params));
+    assertNull(module.provideSleep(parameters()));
     params.removeAll("sleep");
     params.put("sleep", "123");
-    assertEquals(123, (int) module.provideSleep(params));
+    assertEquals(123, (int) module.provideSleep(parameters()));
   }
 
   @Test
   public void testProvideMime() {
-    assertNull(module.provideMime(params));
+    assertNull(module.provideMime(parameters()));
     params.put("mime", "mime");
-    assertEquals("mime", module.provideMime(params));
+    assertEquals("mime", module.provideMime(parameters()));
   }
 
   @Test
   public void testProvidePayload() {
-    assertNull(module.providePayload(params, null));
+    assertNull(module.providePayload(parameters(), null, LazyFactory.<String>throwingLazy()));
+    params.put("payload", "payload");
+    assertEquals(
+        "payload", module.providePayload(parameters(), null, LazyFactory.<String>throwingLazy()));
+    assertEquals(
+        "foo", module.providePayload(parameters(), "foo", LazyFactory.<String>throwingLazy()));
+  }
+
+  @Test
+  public void testProvidePayload_postPayload() {
+    params.put("postpayload", "");
+    assertEquals("body", module.providePayload(parameters(), null, lazy("body")));
+    // A literal "payload" wins over the POST body.
+    params.put("payload", "payload");
+    assertEquals(
+        "payload", module.providePayload(parameters(), null, LazyFactory.<String>throwingLazy()));
+  }
+
+  @Test
+  public void testProvidePostPayloadStream() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getInputStream()).thenReturn(new FakeServletInputStream(new byte[] {1, 2, 3}));
+    assertNull(module.providePostPayloadStream(parameters(), null, request, 2));
+    params.put("postpayload", "");
+    assertNull(module.providePostPayloadStream(parameters(), "egg", request, 2));
+    assertArrayEquals(
+        new byte[] {1, 2, 3},
+        ByteStreams.toByteArray(module.providePostPayloadStream(parameters(), null, request, 3)));
+    params.put("payload", "payload");
+    assertNull(module.providePostPayloadStream(parameters(), null, request, 3));
+  }
+
+  @Test
+  public void testProvidePostPayloadStream_tooLarge() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getInputStream()).thenReturn(new FakeServletInputStream(new byte[] {1, 2, 3}));
+    params.put("postpayload", "");
+    InputStream stream = module.providePostPayloadStream(parameters(), null, request, 2);
+    assertEquals(1, stream.read());
+    assertEquals(2, stream.read());
+    // The body isn't cut short at the limit; reading past it fails instead.
+    thrown.expect(PayloadTooLargeException.class);
+    stream.read();
+  }
+
+  @Test
+  public void testProvidePostPayloadStream_tooLargeBulkRead() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getInputStream()).thenReturn(new FakeServletInputStream(new byte[] {1, 2, 3}));
+    params.put("postpayload", "");
+    thrown.expect(PayloadTooLargeException.class);
+    ByteStreams.toByteArray(module.providePostPayloadStream(parameters(), null, request, 2));
+  }
+
+  @Test
+  public void testProvidePostPayloadBytes() {
+    byte[] body = new byte[] {1, 2, 3};
+    assertNull(module.providePostPayloadBytes(parameters(), null, lazy(body)));
+    params.put("postpayload", "");
+    assertNull(module.providePostPayloadBytes(parameters(), "egg", lazy(body)));
+    assertArrayEquals(body, module.providePostPayloadBytes(parameters(), null, lazy(body)));
     params.put("payload", "payload");
-    assertEquals("payload", module.providePayload(params, null));
-    assertEquals("foo", module.providePayload(params, "foo"));
+    assertNull(module.providePostPayloadBytes(parameters(), null, lazy(body)));
   }
 
   @Test
   public void testProvideDelCookie() {
-    assertEquals(ImmutableList.of(), module.provideDelCookie(params));
+    assertEquals(ImmutableList.of(), module.provideDelCookie(parameters()));
     params.putAll("delcookie", ImmutableList.of("a", "b"));
-    assertEquals(ImmutableList.of("a", "b"), module.provideDelCookie(params));
+    assertEquals(ImmutableList.of("a", "b"), module.provideDelCookie(parameters()));
   }
 
   @Test
   public void testProvideAddCookie() {
-    assertEquals(ImmutableMap.of(), module.provideAddCookie(params));
+    assertEquals(ImmutableMap.of(), module.provideAddCookie(parameters()));
     params.putAll("addcookie", ImmutableList.of("a=b=c", "c"));
-    assertEquals(ImmutableMap.of("a", "b=c", "c", ""), module.provideAddCookie(params));
+    assertEquals(ImmutableMap.of("a", "b=c", "c", ""), module.provideAddCookie(parameters()));
   }
 
   @Test
   public void testProvideHeader() {
-    assertEquals(ImmutableMap.of(), module.provideHeader(params));
+    assertEquals(ImmutableMap.of(), module.provideHeader(parameters()));
     params.putAll("header", ImmutableList.of("a=b=c", "c"));
-    assertEquals(ImmutableMap.of("a", "b=c", "c", ""), module.provideHeader(params));
+    assertEquals(ImmutableMap.of("a", "b=c", "c", ""), module.provideHeader(parameters()));
   }
 
   @Test
   public void testProvideEasterEggUrl() {
     ImmutableTable<String, String, String> eggs = ImmutableTable.of("easter", "egg", "redirect");
-    assertNull(module.provideEasterEggUrl(params, eggs));
+    assertNull(module.provideEasterEggUrl(parameters(), eggs));
     params.put("easter", "egg");
-    assertEquals("redirect", module.provideEasterEggUrl(params, eggs));
+    assertEquals("redirect", module.provideEasterEggUrl(parameters(), eggs));
   }
 
   @Test
-  public void testProvideParameterMap_queryOnly() {
+  public void testProvideEasterEggUrl_onlyLooksUpEggParams() {
+    ImmutableTable<String, String, String> eggs = ImmutableTable.of("easter", "egg", "redirect");
+    Multimap<String, String> body = spy(LinkedListMultimap.<String, String>create());
+    body.put("status", "123");
+    RequestParameters parameters = new RequestParameters(
+        "easter=basket",
+        lazy(new RequestParameters.Body(body)),
+        PhaseTimer.DISABLED);
+    assertNull(module.provideEasterEggUrl(parameters, eggs));
+    verify(body).get("easter");
+    verify(body, never()).get("status");
+  }
+
+  @Test
+  public void testProvideRequestParameters_queryAndBodyValuesAreMerged() {
+    RequestParameters parameters = module.provideRequestParameters(
+        "header=a=b&delcookie=x",
+        "POST",
+        lazy("header=c=d&addcookie=e=f&delcookie=y"),
+        null,
+        1 << 20,
+        LazyFactory.<FileItemIterator>lazy(null),
+        PhaseTimer.DISABLED);
+    assertEquals(ImmutableMap.of("a", "b", "c", "d"), module.provideHeader(parameters));
+    assertEquals(ImmutableMap.of("e", "f"), module.provideAddCookie(parameters));
+    assertEquals(ImmutableList.of("x", "y"), module.provideDelCookie(parameters));
+  }
+
+  @Test
+  public void testProvideRequestParameters_queryOnly() {
     params.put("status", "123");
     params.put("sleep", "456");
     params.put("mime", "a/b");
@@ -148,7 +272,7 @@ public class HttpApiModuleTest {
     params.putAll("header", ImmutableList.of("a=b", "c"));
     assertEquals(
         params,
-        module.provideParameterMap(
+        lookUp(module.provideRequestParameters(
             "status=123&"
                 + "sleep=456&"
                 + "mime=a/b&"
@@ -156,13 +280,16 @@ public class HttpApiModuleTest {
                 + "delcookie=a&delcookie=b&"
                 + "addcookie=a=b&addcookie=c&"
                 + "header=a=b&header=c",
+            "POST",
             lazy(""),
             null,
-            null));
+            1 << 20,
+            LazyFactory.<FileItemIterator>lazy(null),
+            PhaseTimer.DISABLED), params));
   }
 
   @Test
-  public void testProvideParameterMap_queryAndFormUrlEncoded() {
+  public void testProvideRequestParameters_queryAndFormUrlEncoded() {
     // Ordering matters, and we expect the query parameters to come before the body ones.
     params.put("status", "123");
     params.put("sleep", "456");
@@ -177,7 +304,7 @@ public class HttpApiModuleTest {
     params.put("payload", "ignorable_second_payload");
     assertEquals(
         params,
-        module.provideParameterMap(
+        lookUp(module.provideRequestParameters(
             "status=123&"
                 + "sleep=456&"
                 + "mime=a/b&"
@@ -185,13 +312,16 @@ public class HttpApiModuleTest {
                 + "delcookie=a&"
                 + "addcookie=a=b&"
                 + "header=a=b",
+            "POST",
             lazy("delcookie=b&addcookie=c&header=c&payload=ignorable_second_payload"),
             null,
-            null));
+            1 << 20,
+            LazyFactory.<FileItemIterator>lazy(null),
+            PhaseTimer.DISABLED), params));
   }
 
   @Test
-  public void testProvideParameterMap_queryAndMultipartFormData() throws Exception {
+  public void testProvideRequestParameters_queryAndMultipartFormData() throws Exception {
     // Ordering matters, and we expect the query parameters to come before the body ones.
     params.put("sleep", "456");
     params.put("mime", "a/b");
@@ -199,44 +329,163 @@ public class HttpApiModuleTest {
     params.put("payload", "foo");
     assertEquals(
         params,
-        module.provideParameterMap(
+        lookUp(module.provideRequestParameters(
             "sleep=456&mime=a/b",
+            "POST",
             LazyFactory.<String>throwingLazy(),  // Reading the body directly would be an error.
             "UTF-16",
-            new FakeFileItemIterator(
+            1 << 20,
+            LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
                 createItem("status", "123", false),
-                createItem("payload", "foo", true))));
+                createItem("payload", "foo", true))),
+            PhaseTimer.DISABLED), params));
   }
 
   @Test
-  public void testProvideParameterMap_postPayload() throws Exception {
-    // The post body should not be interpreted, and should be stuffed into the "payload" param.
+  public void testProvideRequestParameters_postPayload() throws Exception {
+    // The post body should not be interpreted, or even read, since it's the "payload" param.
     params.put("status", "123");
     params.put("postpayload", "");
-    params.put("payload", "foo=bar&baz=qux");
     assertEquals(
         params,
-        module.provideParameterMap(
+        lookUp(module.provideRequestParameters(
             "status=123&postpayload",
-            lazy("foo=bar&baz=qux"),
+            "POST",
+            LazyFactory.<String>throwingLazy(),
             null,
-            new FakeFileItemIterator(
-                createItem("oops", "this shouldn't have been processed", false))));
+            1 << 20,
+            LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
+                createItem("oops", "this shouldn't have been processed", false))),
+            PhaseTimer.DISABLED), params));
   }
 
   @Test
-  public void testProvideParameterMap_payloadAndPostPayload() throws Exception {
-    // The post body should not be interpreted and should be ordered after the literal "payload".
+  public void testProvideRequestParameters_payloadAndPostPayload() throws Exception {
+    // The post body should not be interpreted or read, and only the literal "payload" is a param.
     params.put("status", "123");
     params.put("postpayload", "");
-    params.putAll("payload", ImmutableList.of("foo", "foo=bar&baz=qux"));
+    params.put("payload", "foo");
     assertEquals(
         params,
-        module.provideParameterMap(
+        lookUp(module.provideRequestParameters(
             "status=123&postpayload&payload=foo",
-            lazy("foo=bar&baz=qux"),
+            "POST",
+            LazyFactory.<String>throwingLazy(),
             null,
-            new FakeFileItemIterator(
-                createItem("oops", "this shouldn't have been processed", false))));
+            1 << 20,
+            LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
+                createItem("oops", "this shouldn't have been processed", false))),
+            PhaseTimer.DISABLED), params));
+  }
+
+  @Test
+  public void testProvideRequestParameters_getDoesNotReadBody() throws Exception {
+    RequestParameters parameters = module.provideRequestParameters(
+        "status=123",
+        "GET",
+        LazyFactory.<String>throwingLazy(),
+        null,
+        1 << 20,
+        LazyFactory.<FileItemIterator>throwingLazy(),
+        PhaseTimer.DISABLED);
+    assertNull(parameters.getFirstValue("payload"));
+    assertEquals(ImmutableList.of("123"), parameters.getValues("status"));
+  }
+
+  @Test
+  public void testProvideRequestParameters_bodyIsNotReadUntilLookup() throws Exception {
+    // Nothing is read or parsed until a param is looked up.
+    module.provideRequestParameters(
+        "status=123",
+        "POST",
+        LazyFactory.<String>throwingLazy(),
+        null,
+        1 << 20,
+        LazyFactory.<FileItemIterator>throwingLazy(),
+        PhaseTimer.DISABLED);
+  }
+
+  @Test
+  public void testProvideRequestParameters_queryValuesComeFirst() throws Exception {
+    RequestParameters parameters = module.provideRequestParameters(
+        "status=123&payload=foo",
+        "POST",
+        lazy("payload=bar&mime=a/b"),
+        null,
+        1 << 20,
+        LazyFactory.<FileItemIterator>lazy(null),
+        PhaseTimer.DISABLED);
+    assertEquals("foo", parameters.getFirstValue("payload"));
+    assertEquals("a/b", parameters.getFirstValue("mime"));
+    assertEquals(ImmutableList.of("foo", "bar"), parameters.getValues("payload"));
+  }
+
+  @Test
+  public void testProvideRequestParameters_multipartTooLarge() throws Exception {
+    RequestParameters parameters = module.provideRequestParameters(
+        "",
+        "POST",
+        LazyFactory.<String>throwingLazy(),
+        "UTF-16",
+        10,
+        LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
+            createItem("payload", "foo", true),
+            createItem("payload", "bar", true))),
+        PhaseTimer.DISABLED);
+    thrown.expect(PayloadTooLargeException.class);
+    parameters.getFirstValue("payload");
+  }
+
+  @Test
+  public void testProvideRequestParameters_multipartTooManyParts() throws Exception {
+    FileItemStream[] items = new FileItemStream[65];
+    Arrays.fill(items, createItem("a", "", true));
+    RequestParameters parameters = module.provideRequestParameters(
+        "",
+        "POST",
+        LazyFactory.<String>throwingLazy(),
+        "UTF-16",
+        1 << 20,
+        LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(items)),
+        PhaseTimer.DISABLED);
+    thrown.expect(PayloadTooLargeException.class);
+    thrown.expectMessage("Too many parts");
+    parameters.getFirstValue("payload");
+  }
+
+  @Test
+  public void testProvideRequestParameters_multipartFileBytes() throws Exception {
+    // Bytes that aren't valid UTF-16, or UTF-8, so they would be mangled by decoding.
+    byte[] file = {(byte) 0xff, (byte) 0xd8, 0, (byte) 0x80, (byte) 0xd8, 0x00, 0x41};
+    RequestParameters parameters = module.provideRequestParameters(
+        "",
+        "POST",
+        LazyFactory.<String>throwingLazy(),
+        "UTF-16",
+        1 << 20,
+        LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
+            createItem("mime", "a/b", true),
+            createItem("photo.jpg", file, false))),
+        PhaseTimer.DISABLED);
+    assertEquals(1, parameters.getFileValues("photo.jpg").size());
+    assertArrayEquals(file, parameters.getFileValues("photo.jpg").get(0));
+    assertEquals("a/b", parameters.getFirstValue("mime"));
+    assertTrue(parameters.getFileValues("mime").isEmpty());
+  }
+
+  @Test
+  public void testProvideRequestParameters_multipartPartTooLarge() throws Exception {
+    RequestParameters parameters = module.provideRequestParameters(
+        "",
+        "POST",
+        LazyFactory.<String>throwingLazy(),
+        "UTF-16",
+        1 << 20,
+        LazyFactory.<FileItemIterator>lazy(new FakeFileItemIterator(
+            createItem("payload", new byte[(64 << 10) + 1], true))),
+        PhaseTimer.DISABLED);
+    thrown.expect(PayloadTooLargeException.class);
+    thrown.expectMessage("Part too large");
+    parameters.getFirstValue("payload");
   }
 }
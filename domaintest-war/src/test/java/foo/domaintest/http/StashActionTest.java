@@ -20,7 +20,11 @@ import static com.google.common.base.Strings.repeat;
 import static foo.domaintest.util.Key.Type.STASH;
 import static foo.domaintest.util.Key.Type.TOKEN;
 import static foo.domaintest.util.testutil.LazyFactory.lazy;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
@@ -29,6 +33,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import foo.domaintest.action.HttpErrorException.BadRequestException;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
 import foo.domaintest.util.TempUrlFactory;
@@ -53,7 +58,7 @@ public class StashActionTest {
   private static final String TESTING_URL_BASE = "http://testing.example";
 
   StashAction action = new StashAction();
-  Memcache memcache = new Memcache(null, mock(Metrics.class));
+  Memcache memcache = new Memcache(null, mock(Metrics.class), PhaseTimer.DISABLED);
 
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public TestEnvironment env = new TestEnvironment(new LocalMemcacheServiceTestConfig());
@@ -61,6 +66,7 @@ public class StashActionTest {
   public StashActionTest() {
     action.memcache = memcache;
     action.lazyRandomToken = lazy("token");
+    action.payload = lazy((String) null);
     action.response = new FakeResponse();
     action.tempUrlFactory = new TempUrlFactory(TESTING_URL_BASE + "/stash");
   }
@@ -86,7 +92,7 @@ public class StashActionTest {
     action.cookiesToDelete = ImmutableList.of("x", "y");
     action.cookiesToAdd = ImmutableMap.of("j", "k", "m", "");
     action.headers = ImmutableMap.of("aa", "bb", "cc", "");
-    action.payload = "foo";
+    action.payload = lazy("foo");
     action.run();
     assertEquals(
         new FakeResponse().setPayload(TESTING_URL_BASE + "/temp/token"),
@@ -100,7 +106,7 @@ public class StashActionTest {
             .put("cookiesToDelete", action.cookiesToDelete)
             .put("cookiesToAdd", action.cookiesToAdd)
             .put("headers", action.headers)
-            .put("payload", action.payload)
+            .put("payload", "foo")
             .build(),
         memcache.load(new Key(STASH, "token")));
   }
@@ -123,13 +129,51 @@ public class StashActionTest {
     assertEquals(expected, memcache.load(new Key(STASH, "token")));
   }
 
+  @Test
+  public void testHeadDoesNotStash() {
+    action.method = "HEAD";
+    action.payload = lazy("foo");
+    action.run();
+    assertEquals(
+        new FakeResponse().setPayload(TESTING_URL_BASE + "/temp/token"),
+        action.response);
+    assertTrue(((FakeResponse) action.response).isResponseSent());
+    assertNull(memcache.load(new Key(STASH, "token")));
+  }
+
   @Test
   public void testTruncation() throws Exception {
-    action.payload = repeat("A", 10241);
+    action.payload = lazy(repeat("A", 10241));
     action.run();
     assertEquals(repeat("A", 10240), loadMap("token").get("payload"));
   }
 
+  @Test
+  public void testPostPayloadBytes() throws Exception {
+    action.postPayloadBytes = new byte[] {(byte) 0xff, 0, 'a'};
+    action.run();
+    assertArrayEquals(
+        new byte[] {(byte) 0xff, 0, 'a'}, (byte[]) loadMap("token").get("payloadBytes"));
+    assertFalse(loadMap("token").containsKey("payload"));
+  }
+
+  @Test
+  public void testPostPayloadBytes_truncation() throws Exception {
+    action.postPayloadBytes = new byte[10241];
+    action.run();
+    assertEquals(10240, ((byte[]) loadMap("token").get("payloadBytes")).length);
+  }
+
+  @Test
+  public void testPostPayloadBytes_redirectKeepsString() throws Exception {
+    action.status = 302;
+    action.postPayloadBytes = "http://foo.example".getBytes(UTF_8);
+    action.payload = lazy("http://foo.example");
+    action.run();
+    assertEquals("http://foo.example", loadMap("token").get("payload"));
+    assertFalse(loadMap("token").containsKey("payloadBytes"));
+  }
+
   @Test
   @SuppressWarnings("unchecked")
   public void testRepeatedValuesLimitedTo20() throws Exception {
@@ -145,7 +189,7 @@ public class StashActionTest {
   public void testUserProvidedToken() throws Exception {
     memcache.save(new Key(TOKEN, "usertoken"), true, null);
     action.tokenParam = "usertoken";
-    action.payload = "foo";
+    action.payload = lazy("foo");
     action.run();
     assertEquals("foo", loadMap("usertoken").get("payload"));
   }
@@ -154,7 +198,7 @@ public class StashActionTest {
   public void testUnknownUserProvidedToken() throws Exception {
     thrown.expect(BadRequestException.class);
     action.tokenParam = "usertoken";
-    action.payload = "foo";
+    action.payload = lazy("foo");
     action.run();
     assertEquals("foo", loadMap("usertoken").get("payload"));
   }
@@ -17,27 +17,35 @@
 package foo.domaintest.http;
 
 import static foo.domaintest.util.testutil.LazyFactory.lazy;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import foo.domaintest.action.HttpErrorException.NotFoundException;
 import foo.domaintest.action.Response;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 import foo.domaintest.util.Memcache;
-import foo.domaintest.util.Sleeper;
 import foo.domaintest.util.TempUrlFactory;
+import foo.domaintest.util.testutil.FakeSleeper;
 import foo.domaintest.util.testutil.TestEnvironment;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 /** Unit tests for the integration between /stash and /temp. */
@@ -45,32 +53,108 @@ import javax.servlet.http.HttpServletResponse;
 public class StashToTempTest {
 
   @Rule public TestEnvironment env = new TestEnvironment(new LocalMemcacheServiceTestConfig());
+  @Rule public ExpectedException thrown = ExpectedException.none();
 
-  @Mock Sleeper sleeper;
+  FakeSleeper sleeper = new FakeSleeper();
   @Mock HttpServletResponse servletResponse;
   @Mock Metrics metrics;
 
   @Test
   public void testIntegration() throws Exception {
     StashAction stash = new StashAction();
-    stash.response = new Response(sleeper, servletResponse, metrics);
-    stash.memcache = new Memcache(null, metrics);
+    stash.response =
+        new Response(sleeper, servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    stash.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
     StringWriter stashWriter = new StringWriter();
     when(servletResponse.getWriter()).thenReturn(new PrintWriter(stashWriter));
     stash.tempUrlFactory = new TempUrlFactory("http://testing.example/stash");
     stash.lazyRandomToken = lazy("token");
     stash.status = 234;
-    stash.payload = "foo";
+    stash.payload = lazy("foo");
     stash.run();
 
     TempAction temp = new TempAction();
-    temp.response = new Response(sleeper, servletResponse, metrics);
-    temp.memcache = new Memcache(null, metrics);
+    temp.response =
+        new Response(sleeper, servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    temp.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
     StringWriter tempWriter = new StringWriter();
     when(servletResponse.getWriter()).thenReturn(new PrintWriter(tempWriter));
-    temp.requestPath = stashWriter.toString().replaceFirst(".*/", "");
+    temp.pathVariables = ImmutableMap.of("token", stashWriter.toString().replaceFirst(".*/", ""));
     temp.run();
     verify(servletResponse).setStatus(234);
     assertEquals("foo", tempWriter.toString());
   }
+
+  @Test
+  public void testIntegration_binary() throws Exception {
+    StashAction stash = new StashAction();
+    stash.response =
+        new Response(sleeper, servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    stash.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
+    StringWriter stashWriter = new StringWriter();
+    when(servletResponse.getWriter()).thenReturn(new PrintWriter(stashWriter));
+    stash.tempUrlFactory = new TempUrlFactory("http://testing.example/stash");
+    stash.lazyRandomToken = lazy("token");
+    stash.mimeType = "image/png";
+    stash.postPayloadBytes = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xff};
+    stash.run();
+
+    TempAction temp = new TempAction();
+    temp.response =
+        new Response(sleeper, servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    temp.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
+    final ByteArrayOutputStream tempOut = new ByteArrayOutputStream();
+    when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          tempOut.write(b);
+        }});
+    temp.pathVariables = ImmutableMap.of("token", stashWriter.toString().replaceFirst(".*/", ""));
+    temp.run();
+    verify(servletResponse).setContentType("image/png");
+    verify(servletResponse).setContentLength(6);
+    assertArrayEquals(
+        new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xff}, tempOut.toByteArray());
+  }
+
+  @Test
+  public void testIntegration_resumedDownload() throws Exception {
+    StashAction stash = new StashAction();
+    stash.response =
+        new Response(sleeper, servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    stash.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
+    StringWriter stashWriter = new StringWriter();
+    when(servletResponse.getWriter()).thenReturn(new PrintWriter(stashWriter));
+    stash.tempUrlFactory = new TempUrlFactory("http://testing.example/stash");
+    stash.lazyRandomToken = lazy("token");
+    stash.postPayloadBytes = new byte[] {1, 2, 3, 4, 5, 6};
+    stash.run();
+    String token = stashWriter.toString().replaceFirst(".*/", "");
+
+    final ByteArrayOutputStream tempOut = new ByteArrayOutputStream();
+    when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          tempOut.write(b);
+        }});
+    TempAction temp = new TempAction();
+    temp.response = new Response(
+        sleeper, servletResponse, null, null, "bytes=0-3", metrics, PhaseTimer.DISABLED);
+    temp.memcache = new Memcache(null, metrics, PhaseTimer.DISABLED);
+    temp.pathVariables = ImmutableMap.of("token", token);
+    temp.run();
+    verify(servletResponse).setHeader("Content-Range", "bytes 0-3/6");
+
+    // The stash is still there, so the rest of it can be fetched.
+    temp.response = new Response(
+        sleeper, servletResponse, null, null, "bytes=4-", metrics, PhaseTimer.DISABLED);
+    temp.run();
+    verify(servletResponse).setHeader("Content-Range", "bytes 4-5/6");
+    verify(servletResponse, times(2)).setStatus(206);
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, tempOut.toByteArray());
+
+    // Serving the final byte used it up.
+    thrown.expect(NotFoundException.class);
+    temp.run();
+  }
 }
@@ -19,6 +19,7 @@ package foo.domaintest.http;
 import static foo.domaintest.util.Key.Type.STASH;
 import static junit.framework.Assert.fail;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
@@ -27,6 +28,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import foo.domaintest.action.HttpErrorException.NotFoundException;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
 import foo.domaintest.util.testutil.FakeResponse;
@@ -43,12 +45,12 @@ public class TempActionTest {
 
   @Rule public TestEnvironment env = new TestEnvironment(new LocalMemcacheServiceTestConfig());
 
-  Memcache memcache = new Memcache(null, mock(Metrics.class));
+  Memcache memcache = new Memcache(null, mock(Metrics.class), PhaseTimer.DISABLED);
   TempAction action = new TempAction();
 
   public TempActionTest() {
     action.memcache = memcache;
-    action.requestPath = "http://testing.example/temp/token";
+    action.pathVariables = ImmutableMap.of("token", "token");
   }
 
   @Test
@@ -85,4 +87,15 @@ public class TempActionTest {
       // Expected.
     }
   }
+
+  @Test
+  public void testHead_doesNotConsumeStash() {
+    action.response = new FakeResponse();
+    action.method = "HEAD";
+    memcache.save(
+        new Key(STASH, "token"), ImmutableMap.<String, Object>of("payload", "foo"), null);
+    action.run();
+    assertTrue(((FakeResponse) action.response).isResponseSent());
+    assertNotNull(memcache.load(new Key(STASH, "token")));
+  }
 }
@@ -18,11 +18,13 @@ package foo.domaintest.http;
 
 import static foo.domaintest.util.Key.Type.TOKEN;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
 import foo.domaintest.util.Key;
 import foo.domaintest.util.Memcache;
 import foo.domaintest.util.testutil.FakeResponse;
@@ -42,7 +44,7 @@ public class TokenActionTest {
   @Test
   public void testSavesAndReturnsToken() {
     TokenAction action = new TokenAction();
-    action.memcache = new Memcache(null, mock(Metrics.class));
+    action.memcache = new Memcache(null, mock(Metrics.class), PhaseTimer.DISABLED);
     action.response = new FakeResponse();
     action.randomToken = "token";
     action.run();
@@ -52,4 +54,19 @@ public class TokenActionTest {
     assertTrue(((FakeResponse) action.response).isResponseSent());
     assertTrue((boolean) action.memcache.load(new Key(TOKEN, "token")));
   }
+
+  @Test
+  public void testHeadDoesNotSaveToken() {
+    TokenAction action = new TokenAction();
+    action.memcache = new Memcache(null, mock(Metrics.class), PhaseTimer.DISABLED);
+    action.response = new FakeResponse();
+    action.randomToken = "token";
+    action.method = "HEAD";
+    action.run();
+    assertEquals(
+        new FakeResponse().setPayload("token"),
+        action.response);
+    assertTrue(((FakeResponse) action.response).isResponseSent());
+    assertNull(action.memcache.load(new Key(TOKEN, "token")));
+  }
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import foo.domaintest.metrics.PhaseTimer.Phase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PhaseTimer}. */
+@RunWith(JUnit4.class)
+public class PhaseTimerTest {
+
+  @Test
+  public void testForQuery() {
+    assertSame(PhaseTimer.DISABLED, PhaseTimer.forQuery(null));
+    assertSame(PhaseTimer.DISABLED, PhaseTimer.forQuery(""));
+    assertSame(PhaseTimer.DISABLED, PhaseTimer.forQuery("payload=servertiming"));
+    assertSame(PhaseTimer.DISABLED, PhaseTimer.forQuery("servertimingx&a=b"));
+    assertTrue(PhaseTimer.forQuery("servertiming").isEnabled());
+    assertTrue(PhaseTimer.forQuery("a=b&servertiming=1").isEnabled());
+    assertTrue(PhaseTimer.forQuery("a=b&&servertiming&c").isEnabled());
+    assertTrue(PhaseTimer.forQuery("servertiming=%zz").isEnabled());
+  }
+
+  @Test
+  public void testDisabled() {
+    assertFalse(PhaseTimer.DISABLED.isEnabled());
+    assertEquals(0, PhaseTimer.DISABLED.start());
+    PhaseTimer.DISABLED.stop(Phase.SLEEP, 0);
+    assertEquals("", PhaseTimer.DISABLED.toServerTiming());
+  }
+
+  @Test
+  public void testFormat() throws Exception {
+    PhaseTimer timer = PhaseTimer.forQuery("servertiming");
+    timer.stop(Phase.INJECT, timer.start());
+    long start = timer.start();
+    Thread.sleep(2);
+    timer.stop(Phase.MEMCACHE, start);
+    assertTrue(timer.toServerTiming(),
+        timer.toServerTiming().matches("inject;dur=\\d+\\.\\d{3}, memcache;dur=\\d+\\.\\d{3}"));
+    assertTrue(timer.toMetricsString(),
+        timer.toMetricsString().matches("inject:\\d+\\.\\d{3} memcache:\\d+\\.\\d{3}"));
+  }
+
+  @Test
+  public void testStopOnAnotherThread() throws Exception {
+    final PhaseTimer timer = PhaseTimer.forQuery("servertiming");
+    final long start = timer.start();
+    Thread.sleep(2);
+    // Like a deferred sleep, which ends on the thread that wakes the request up.
+    Thread waker = new Thread() {
+        @Override
+        public void run() {
+          timer.stop(Phase.SLEEP, start);
+        }};
+    waker.start();
+    waker.join();
+    assertTrue(timer.toServerTiming(), timer.toServerTiming().matches("sleep;dur=\\d+\\.\\d{3}"));
+  }
+}
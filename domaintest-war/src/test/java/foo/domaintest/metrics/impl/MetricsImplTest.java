@@ -20,6 +20,7 @@ import static com.google.appengine.tools.development.testing.LocalTaskQueueTestC
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static foo.domaintest.util.QueryStringHelper.parseQuery;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.api.services.bigquery.Bigquery;
@@ -28,6 +29,8 @@ import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestCo
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.metrics.PhaseTimer.Phase;
 import foo.domaintest.util.testutil.TestEnvironment;
 
 import org.junit.Before;
@@ -54,6 +57,7 @@ public class MetricsImplTest {
     metrics.tld = "tld";
     metrics.method = "GET";
     metrics.startTimeMillis = 0;
+    metrics.timer = PhaseTimer.DISABLED;
     metrics.addActivity("foo");
     metrics.addActivity("bar");
     metrics.setResponseCode(456);
@@ -79,6 +83,18 @@ public class MetricsImplTest {
     assertEquals("456", getOnlyElement(params.get("responsecode")));
     assertTrue(params.containsKey("endtime"));
     assertTrue(params.containsKey("insertid"));
+    assertFalse(params.containsKey("phases"));
+  }
+
+  @Test
+  public void testExport_phases() throws Exception {
+    metrics.projectId = "project id";
+    metrics.timer = PhaseTimer.forQuery("servertiming");
+    metrics.timer.stop(Phase.SLEEP, metrics.timer.start());
+    metrics.export();
+    QueueStateInfo queueInfo = getLocalTaskQueue().getQueueStateInfo().get("default");
+    Multimap<String, String> params = parseQuery(queueInfo.getTaskInfo().get(0).getBody());
+    assertTrue(getOnlyElement(params.get("phases")).startsWith("sleep:"));
   }
 
   @Test
@@ -86,4 +102,19 @@ public class MetricsImplTest {
     metrics.export();
     assertEquals(0, getLocalTaskQueue().getQueueStateInfo().get("default").getCountTasks());
   }
+
+  @Test
+  public void testGetReportedPath() throws Exception {
+    assertEquals("/path", metrics.getReportedPath());
+    metrics.actionPath = "/";
+    assertEquals("/", metrics.getReportedPath());
+    metrics.actionPath = "/temp/*";
+    assertEquals("/temp", metrics.getReportedPath());
+    metrics.actionPath = "/temp/{token}";
+    assertEquals("/temp", metrics.getReportedPath());
+    metrics.actionPath = "/temp/*/raw";
+    assertEquals("/temp", metrics.getReportedPath());
+    metrics.actionPath = "/*";
+    assertEquals("/", metrics.getReportedPath());
+  }
 }
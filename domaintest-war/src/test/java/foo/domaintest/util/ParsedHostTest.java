@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util;
+
+import static foo.domaintest.util.ParsedHost.getHost;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link ParsedHost}. */
+@RunWith(JUnit4.class)
+public class ParsedHostTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testGetHost() {
+    assertEquals("foo.example", getHost("http://foo.example"));
+    assertEquals("foo.example", getHost("http://foo.example/bar"));
+    assertEquals("foo.example", getHost("https://foo.example:8080/bar"));
+    assertEquals("foo.example", getHost("http://foo.example?bar"));
+  }
+
+  @Test
+  public void testForUrl() {
+    ParsedHost host = ParsedHost.forUrl("http://src.domaintest.xn--q9jyb4c/foo");
+    assertEquals(
+        ImmutableList.of("src", "domaintest", "xn--q9jyb4c"), host.getDomainName().parts());
+    assertEquals("xn--q9jyb4c", host.getTld());
+    assertEquals("src.domaintest.みんな", host.getUnicodeHost());
+    assertEquals("みんな", host.getUnicodeTld());
+  }
+
+  @Test
+  public void testForUrl_isCached() {
+    assertSame(
+        ParsedHost.forUrl("http://testing.example/foo"),
+        ParsedHost.forUrl("https://testing.example:443/bar"));
+  }
+
+  @Test
+  public void testForUrl_invalidHost() {
+    thrown.expect(IllegalArgumentException.class);
+    ParsedHost.forUrl("http://foo..example/");
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util;
+
+import static foo.domaintest.util.QueryStringHelper.getParam;
+import static foo.domaintest.util.QueryStringHelper.parseQuery;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.Random;
+
+/** Unit tests for {@link QueryStringHelper}. */
+@RunWith(JUnit4.class)
+public class QueryStringHelperTest {
+
+  @Test
+  public void testGetParam() {
+    assertNull(getParam(null, "foo"));
+    assertNull(getParam("", "foo"));
+    assertNull(getParam("bar=foo", "foo"));
+    assertNull(getParam("food=1", "foo"));
+    assertEquals("", getParam("foo", "foo"));
+    assertEquals("", getParam("a=b&foo=", "foo"));
+    assertEquals("1", getParam("a=b&&foo=1&foo=2", "foo"));
+    assertEquals("a b&c", getParam("foo=a+b%26c", "foo"));
+  }
+
+  @Test
+  public void testParseQuery() {
+    assertEquals(ImmutableMultimap.of(), parseQuery(null));
+    assertEquals(ImmutableMultimap.of(), parseQuery("&&"));
+    assertEquals(
+        ImmutableListMultimap.of("a", "1", "b", "", "a", "2", "", "", "c", "x=y"),
+        parseQuery("a=1&b&&a=2&=&c=x=y"));
+    assertEquals(
+        ImmutableMultimap.of("a b", "f\u00f6\u00f6 &", "\ufffd", "\ufffd"),
+        parseQuery("a+b=f%C3%B6%c3%b6+%26&%C3=%ff"));
+  }
+
+  @Test
+  public void testParseQuery_knownNamesAreShared() {
+    assertSame("payload", getOnlyKey(parseQuery(new String("payload=foo"))));
+    assertSame("payload", getOnlyKey(parseQuery("p%61yload=foo")));
+  }
+
+  @Test
+  public void testParseQuery_malformedEscape() {
+    for (String query : new String[] {"a=%", "a=%4", "%zz=1", "a=%-1", "a=%4%"}) {
+      try {
+        parseQuery(query);
+        throw new AssertionError("Expected exception for " + query);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  /** Checks random queries against the URLDecoder based parser that parseQuery replaced. */
+  @Test
+  public void testParseQuery_fuzz() {
+    // Bias the alphabet towards delimiters, escapes and hex digits to hit the interesting cases.
+    String alphabet = "&&==%%%++aF09cC8bx-\u00e9\u0660\uff21";
+    Random random = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      StringBuilder query = new StringBuilder();
+      for (int length = random.nextInt(20); length > 0; length--) {
+        if (random.nextInt(8) == 0) {  // Sometimes emit a whole valid escape.
+          query.append(String.format("%%%02X", random.nextInt(256)));
+        } else {
+          query.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+      }
+      assertSameResult(query.toString());
+    }
+  }
+
+  private static void assertSameResult(String query) {
+    Multimap<String, String> expected;
+    try {
+      expected = parseQueryWithUrlDecoder(query);
+    } catch (IllegalArgumentException e) {
+      try {
+        parseQuery(query);
+        throw new AssertionError("Expected exception for " + query);
+      } catch (IllegalArgumentException expectedException) {
+        return;
+      }
+    }
+    assertEquals(query, expected, parseQuery(query));
+  }
+
+  private static Multimap<String, String> parseQueryWithUrlDecoder(String query) {
+    ImmutableListMultimap.Builder<String, String> params = new ImmutableListMultimap.Builder<>();
+    for (String piece : Splitter.on('&').omitEmptyStrings().split(query)) {
+      List<String> keyAndValue = Splitter.on('=').limit(2).splitToList(piece);
+      try {
+        params.put(
+            URLDecoder.decode(keyAndValue.get(0), UTF_8.name()),
+            URLDecoder.decode(Iterables.get(keyAndValue, 1, ""), UTF_8.name()));
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return params.build();
+  }
+
+  private static String getOnlyKey(Multimap<String, String> params) {
+    return Iterables.getOnlyElement(params.keySet());
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import foo.domaintest.action.AdmissionController;
+import foo.domaintest.action.HttpErrorException.ServiceUnavailableException;
+import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.util.Sleeper.DeferredSleeper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+
+/** Unit tests for {@link Sleeper}. */
+@RunWith(MockitoJUnitRunner.class)
+public class SleeperTest {
+
+  @Mock HttpServletRequest request;
+  @Mock Metrics metrics;
+  @Mock DeferredSleeper deferredSleeper;
+  @Captor ArgumentCaptor<Runnable> wakeUp;
+
+  Sleeper sleeper = new Sleeper();
+  AtomicBoolean ran = new AtomicBoolean();
+  Runnable then = new Runnable() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }};
+
+  @Before
+  public void before() {
+    sleeper.request = request;
+    sleeper.metrics = metrics;
+    sleeper.timer = PhaseTimer.DISABLED;
+    sleeper.admissionController = new AdmissionController(10, 10, 1, 1.0);
+  }
+
+  @Test
+  public void testSleepThen_inline() {
+    sleeper.sleepThen(0, then);
+    assertTrue(ran.get());
+    verify(metrics, never()).addActivity(anyString());
+  }
+
+  @Test
+  public void testSleepThen_deferred() {
+    when(request.getAttribute(Sleeper.DEFERRED_SLEEPER_ATTRIBUTE)).thenReturn(deferredSleeper);
+    sleeper.sleepThen(5, then);
+    assertFalse(ran.get());
+    verify(deferredSleeper).sleepThen(eq(5), wakeUp.capture());
+    verify(metrics).addActivity("sleep");
+    wakeUp.getValue().run();
+    assertTrue(ran.get());
+  }
+
+  @Test
+  public void testSleepThen_shedsSleepsOverLimit() {
+    when(request.getAttribute(Sleeper.DEFERRED_SLEEPER_ATTRIBUTE)).thenReturn(deferredSleeper);
+    sleeper.sleepThen(5, then);
+    verify(deferredSleeper).sleepThen(eq(5), wakeUp.capture());
+    try {
+      sleeper.sleepThen(5, then);
+      fail();
+    } catch (ServiceUnavailableException e) {
+      assertEquals(1, e.getRetryAfterSeconds());
+    }
+    // Once the first sleep ends there's room for another.
+    wakeUp.getValue().run();
+    sleeper.sleepThen(5, then);
+    verify(deferredSleeper, times(2)).sleepThen(eq(5), any(Runnable.class));
+  }
+
+  @Test
+  public void testSleepThen_releasesSleepIfDeferringFails() {
+    when(request.getAttribute(Sleeper.DEFERRED_SLEEPER_ATTRIBUTE)).thenReturn(deferredSleeper);
+    doThrow(new IllegalStateException()).when(deferredSleeper)
+        .sleepThen(anyInt(), any(Runnable.class));
+    try {
+      sleeper.sleepThen(5, then);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    // The failed sleep doesn't hold on to the only sleep slot.
+    doNothing().when(deferredSleeper).sleepThen(anyInt(), any(Runnable.class));
+    sleeper.sleepThen(5, then);
+  }
+
+  @Test
+  public void testSleepThen_deferredHoldsSleepUntilWritten() {
+    when(request.getAttribute(Sleeper.DEFERRED_SLEEPER_ATTRIBUTE)).thenReturn(deferredSleeper);
+    sleeper.sleepThen(5, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sleeper.sleepThen(5, then);
+            fail();
+          } catch (ServiceUnavailableException e) {
+            // Expected, since this sleep is still admitted while it writes.
+          }
+        }});
+    verify(deferredSleeper).sleepThen(eq(5), wakeUp.capture());
+    wakeUp.getValue().run();
+    sleeper.sleepThen(5, then);
+    verify(deferredSleeper, times(2)).sleepThen(eq(5), any(Runnable.class));
+  }
+
+  @Test
+  public void testSleepThen_zeroSecondsIsNeverDeferred() {
+    when(request.getAttribute(Sleeper.DEFERRED_SLEEPER_ATTRIBUTE)).thenReturn(deferredSleeper);
+    sleeper.sleepThen(0, then);
+    assertTrue(ran.get());
+    verify(deferredSleeper, never()).sleepThen(anyInt(), any(Runnable.class));
+  }
+}
@@ -24,7 +24,7 @@ public class FakeResponse extends Response {
   boolean responseSent;
 
   public FakeResponse() {
-    super(null, null, null);
+    super(null, null, null, null, null, null, null);
   }
 
   @Override
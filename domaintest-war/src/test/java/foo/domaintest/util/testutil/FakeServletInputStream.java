@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util.testutil;
+
+import java.io.ByteArrayInputStream;
+
+import javax.servlet.ServletInputStream;
+
+/** A {@link ServletInputStream} over a byte array that records how much of it was read. */
+public class FakeServletInputStream extends ServletInputStream {
+
+  private final ByteArrayInputStream bytes;
+  private int bytesRead;
+
+  public FakeServletInputStream(byte[] bytes) {
+    this.bytes = new ByteArrayInputStream(bytes);
+  }
+
+  @Override
+  public int read() {
+    int b = bytes.read();
+    bytesRead += b == -1 ? 0 : 1;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) {
+    int count = bytes.read(buffer, offset, length);
+    bytesRead += Math.max(count, 0);
+    return count;
+  }
+
+  public int getBytesRead() {
+    return bytesRead;
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.util.testutil;
+
+import foo.domaintest.util.Sleeper;
+
+/** A fake implementation of {@link Sleeper} that records sleeps instead of sleeping. */
+public class FakeSleeper extends Sleeper {
+
+  Integer sleepSeconds;
+
+  @Override
+  public void sleep(int seconds) {
+    this.sleepSeconds = seconds;
+  }
+
+  @Override
+  public void sleepThen(int seconds, Runnable then) {
+    sleep(seconds);
+    then.run();
+  }
+
+  /** Returns the requested sleep, or null if there was none. */
+  public Integer getSleepSeconds() {
+    return sleepSeconds;
+  }
+}
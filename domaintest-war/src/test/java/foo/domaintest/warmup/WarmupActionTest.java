@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package foo.domaintest.warmup;
+
+import static foo.domaintest.util.testutil.LazyFactory.lazy;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import foo.domaintest.action.Response;
+import foo.domaintest.metrics.Metrics;
+import foo.domaintest.metrics.PhaseTimer;
+import foo.domaintest.util.testutil.FakeSleeper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Unit tests for {@link WarmupAction}. */
+@RunWith(MockitoJUnitRunner.class)
+public class WarmupActionTest {
+
+  @Mock Bigquery bigquery;
+  @Mock HttpServletRequest request;
+  @Mock HttpServletResponse servletResponse;
+  @Mock Metrics metrics;
+
+  @Test
+  public void testWarmup() throws Exception {
+    StringWriter writer = new StringWriter();
+    when(servletResponse.getWriter()).thenReturn(new PrintWriter(writer));
+    WarmupAction action = new WarmupAction();
+    action.bigquery = lazy(bigquery);
+    action.easterEggs = lazy((Table<String, String, String>) ImmutableTable.of("a", "b", "c"));
+    action.request = request;
+    action.response = new Response(
+        new FakeSleeper(), servletResponse, null, null, null, metrics, PhaseTimer.DISABLED);
+    action.run();
+    List<String> components = new ArrayList<>();
+    for (String line : writer.toString().split("\n")) {
+      components.add(line.replaceFirst(": \\d+$", ""));
+    }
+    assertEquals(
+        "[bigquery, eastereggs, publicsuffix, landing, fileupload, javamail]",
+        components.toString());
+  }
+}